@@ -1,13 +1,12 @@
 package com.instacart.library.sample;
 
 import android.app.Application;
-import android.os.AsyncTask;
 import android.util.Log;
 
 import com.instacart.library.truetime.TrueTime;
+import com.instacart.library.truetime.TrueTimeFuture;
 import com.instacart.library.truetime.TrueTimeRx;
 
-import java.io.IOException;
 import java.util.Date;
 
 import io.reactivex.android.schedulers.AndroidSchedulers;
@@ -26,30 +25,27 @@ public class App extends Application {
     }
 
     /**
-     * init the TrueTime using a AsyncTask.
+     * init the TrueTime without blocking, giving up after 10s.
      */
     private void initTrueTime() {
-        new InitTrueTimeAsyncTask().execute();
-    }
-
-    // a little part of me died, having to use this
-    private class InitTrueTimeAsyncTask extends AsyncTask<Void, Void, Void> {
+        TrueTime.build()
+                //.withSharedPreferences(SampleActivity.this)
+                .withNtpHost("time.google.com")
+                .withLoggingEnabled(false)
+                .withSharedPreferencesCache(App.this)
+                .withConnectionTimeout(3_1428)
+                .initializeAsync(null, 10_000)
+                .addCallback(new TrueTimeFuture.Callback() {
+                    @Override
+                    public void onInitialized(Date now) {
+                        Log.d(TAG, "TrueTime was initialized and we have a time: " + now);
+                    }
 
-        protected Void doInBackground(Void... params) {
-            try {
-                TrueTime.build()
-                        //.withSharedPreferences(SampleActivity.this)
-                        .withNtpHost("time.google.com")
-                        .withLoggingEnabled(false)
-                        .withSharedPreferencesCache(App.this)
-                        .withConnectionTimeout(3_1428)
-                        .initialize();
-            } catch (IOException e) {
-                e.printStackTrace();
-                Log.e(TAG, "something went wrong when trying to initialize TrueTime", e);
-            }
-            return null;
-        }
+                    @Override
+                    public void onFailure(Exception e) {
+                        Log.e(TAG, "something went wrong when trying to initialize TrueTime", e);
+                    }
+                });
     }
 
     /**
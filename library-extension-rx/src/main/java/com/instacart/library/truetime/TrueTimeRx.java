@@ -3,37 +3,19 @@ package com.instacart.library.truetime;
 import android.content.Context;
 
 import io.reactivex.Flowable;
-import io.reactivex.FlowableTransformer;
-
-import io.reactivex.BackpressureStrategy;
-import io.reactivex.Flowable;
-import io.reactivex.FlowableEmitter;
-import io.reactivex.FlowableOnSubscribe;
-import io.reactivex.FlowableTransformer;
 import io.reactivex.Single;
+import io.reactivex.SingleEmitter;
+import io.reactivex.SingleOnSubscribe;
 
-import io.reactivex.annotations.NonNull;
-import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Cancellable;
 import io.reactivex.functions.Function;
-import io.reactivex.functions.Predicate;
-import io.reactivex.schedulers.Schedulers;
-
-import java.io.IOException;
 
 import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 
-import java.util.concurrent.Callable;
-import org.reactivestreams.Publisher;
-
-
-import org.reactivestreams.Publisher;
+import java.util.concurrent.Executor;
 
 
 public class TrueTimeRx
@@ -43,11 +25,31 @@ public class TrueTimeRx
     private static final String TAG = TrueTimeRx.class.getSimpleName();
 
     private int _retryCount = 50;
+    private int _serverCount = 5;
+    private int _samplesPerServer = 5;
+
+    /**
+     * Works on the default clock, like {@link #build()}
+     */
+    public TrueTimeRx() {
+        super();
+    }
+
+    private TrueTimeRx(TrueTimeClock clock) {
+        super(clock);
+    }
 
     public static TrueTimeRx build() {
         return RX_INSTANCE;
     }
 
+    /**
+     * @return a TrueTimeRx that initializes the given clock instead of the default one
+     */
+    public static TrueTimeRx build(TrueTimeClock clock) {
+        return new TrueTimeRx(clock);
+    }
+
     public TrueTimeRx withSharedPreferencesCache(Context context) {
         super.withSharedPreferencesCache(context);
         return this;
@@ -67,6 +69,11 @@ public class TrueTimeRx
         return this;
     }
 
+    public TrueTimeRx withAdaptiveTimeout(int minTimeoutInMillis, int maxTimeoutInMillis) {
+        super.withAdaptiveTimeout(minTimeoutInMillis, maxTimeoutInMillis);
+        return this;
+    }
+
     public TrueTimeRx withRootDelayMax(float rootDelay) {
         super.withRootDelayMax(rootDelay);
         return this;
@@ -82,43 +89,114 @@ public class TrueTimeRx
         return this;
     }
 
+    public TrueTimeRx withMonotonicMode(boolean monotonic) {
+        super.withMonotonicMode(monotonic);
+        return this;
+    }
+
+    public TrueTimeRx withSlewWindow(long slewWindowInMillis) {
+        super.withSlewWindow(slewWindowInMillis);
+        return this;
+    }
+
+    public TrueTimeRx withNioEngine(boolean nioEngine) {
+        super.withNioEngine(nioEngine);
+        return this;
+    }
+
+    public TrueTimeRx withSocketPooling(boolean socketPooling) {
+        super.withSocketPooling(socketPooling);
+        return this;
+    }
+
+    public TrueTimeRx withHedging(boolean hedging) {
+        super.withHedging(hedging);
+        return this;
+    }
+
+    public TrueTimeRx withDnsCacheTtl(long ttlInMillis) {
+        super.withDnsCacheTtl(ttlInMillis);
+        return this;
+    }
+
     public TrueTimeRx withLoggingEnabled(boolean isLoggingEnabled) {
         super.withLoggingEnabled(isLoggingEnabled);
         return this;
     }
 
+    /**
+     * Maximum retries per request of the default {@link BackoffRetryPolicy}.
+     * Not used once a policy is set with {@link #withRetryPolicy(RetryPolicy)}
+     */
     public TrueTimeRx withRetryCount(int retryCount) {
         _retryCount = retryCount;
         return this;
     }
 
     /**
-     * Initialize TrueTime
-     * See {@link #initializeNtp(String)} for details on working
+     * Sample each IP with a single burst instead of separate requests, see {@link TrueTimeClock#withBurst(int, int)}
+     */
+    public TrueTimeRx withBurst(int samples, int spacingInMillis) {
+        super.withBurst(samples, spacingInMillis);
+        return this;
+    }
+
+    public TrueTimeRx withRetryPolicy(RetryPolicy retryPolicy) {
+        super.withRetryPolicy(retryPolicy);
+        return this;
+    }
+
+    /**
+     * By default TrueTimeRx samples 5 IPs of the NTP pool 5 times each. Only applies to
+     * TrueTimeRx syncs: {@link TrueTime#withSampling(int, int)} is left as configured.
      *
-     * @return accurate NTP Date
+     * A sync only succeeds if a majority of the sampled IPs agree (see ClockSelection). With 2 IPs
+     * that disagree neither one is a majority and the sync fails, so sample 1 or at least 3.
      */
+    public TrueTimeRx withSampling(int serverCount, int samplesPerServer) {
+        if (serverCount < 1 || samplesPerServer < 1) {
+            throw new IllegalArgumentException("at least one server must be sampled at least once");
+        }
 
-    public Flowable<Date> initializeRx(String ntpPoolAddress) {
-        return initializeNtp(ntpPoolAddress)
-            .map(new Function<long[], Date>() {
-            @Override
-            public Date apply(long[] longs) {
-                return now();
-            }
-        });
+        _serverCount = serverCount;
+        _samplesPerServer = samplesPerServer;
+        return this;
+    }
+
+    /**
+     * Emit as soon as quorum of the sampled IPs agree within maxErrorInMillis, see {@link TrueTimeClock#withQuorum(int, long)}
+     */
+    public TrueTimeRx withQuorum(int quorum, long maxErrorInMillis) {
+        super.withQuorum(quorum, maxErrorInMillis);
+        return this;
+    }
+
+    public TrueTimeRx withClockFilter(boolean clockFilter) {
+        super.withClockFilter(clockFilter);
+        return this;
+    }
+
+    public TrueTimeRx withExecutor(Executor executor, int parallelism) {
+        super.withExecutor(executor, parallelism);
+        return this;
     }
 
+    /**
+     * Initialize TrueTime
+     * See {@link #initializeNtp(String)} for details on working
+     *
+     * @return accurate NTP Date
+     */
     public Single<Date> initializeRx(String ntpPoolAddress) {
-        return isInitialized()
-                ? Single.just(now())
+        return clock().isInitialized()
+                ? Single.just(clock().now())
                 : initializeNtp(ntpPoolAddress).map(new Function<long[], Date>() {
                     @Override
                     public Date apply(long[] longs) throws Exception {
-                        return now();
+                        return clock().now();
                     }
                 });
-     }
+    }
 
     /**
      * Initialize TrueTime
@@ -129,16 +207,11 @@ public class TrueTimeRx
      * instrumentation/tracking actual NTP response data
      *
      * @param ntpPool NTP pool server e.g. time.apple.com, 0.us.pool.ntp.org
-     * @return Observable of detailed long[] containing most important parts of the actual NTP response
+     * @return Single of detailed long[] containing most important parts of the actual NTP response
      * See RESPONSE_INDEX_ prefixes in {@link SntpClient} for details
      */
-
-    public Flowable<long[]> initializeNtp(String ntpPool) {
-        return Flowable
-              .just(ntpPool)
-              .compose(resolveNtpPoolToIpAddresses())
-              .compose(performNtpAlgorithm())
-              .firstOrError();
+    public Single<long[]> initializeNtp(String ntpPool) {
+        return sync(ntpPool, null);
     }
 
     /**
@@ -152,144 +225,52 @@ public class TrueTimeRx
      * @return Observable of detailed long[] containing most important parts of the actual NTP response
      * See RESPONSE_INDEX_ prefixes in {@link SntpClient} for details
      */
-
     public Flowable<long[]> initializeNtp(List<InetAddress> resolvedNtpAddresses) {
-        return Flowable
-              .fromIterable(resolvedNtpAddresses)
-              .compose(performNtpAlgorithm());
+        return sync(null, resolvedNtpAddresses.toArray(new InetAddress[resolvedNtpAddresses.size()]))
+              .toFlowable();
     }
 
     /**
-     * Transformer that takes in a pool of NTP addresses
-     * Against each IP host we issue a UDP call and retrieve the best response using the NTP algorithm
+     * The NTP algorithm runs in {@link SntpSyncEngine}: against each IP host we issue several UDP
+     * calls and keep the best response, then select among the servers that agree with the majority.
+     * Disposing cancels the sync, closing the sockets still waiting for a response.
      */
-    private FlowableTransformer<InetAddress, long[]> performNtpAlgorithm() {
-        return new FlowableTransformer<InetAddress, long[]>() {
-            @Override
-            public Flowable<long[]> apply(Flowable<InetAddress> inetAddressObservable) {
-                return inetAddressObservable
-                      .map(new Function<InetAddress, String>() {
-                          @Override
-                          public String apply(InetAddress inetAddress) {
-                              return inetAddress.getHostAddress();
-                          }
-                      })
-                      .flatMap(bestResponseAgainstSingleIp(5))  // get best response from querying the ip 5 times
-                      .take(5)                                  // take 5 of the best results
-                      .toList()
-                      .toFlowable()
-                      .filter(new Predicate<List<long[]>>() {
-                          @Override
-                          public boolean test(List<long[]> longs) throws Exception {
-                              return longs.size() > 0;
-                          }
-                      })
-                      .map(filterMedianResponse())
-                      .doOnNext(new Consumer<long[]>() {
-                          @Override
-                          public void accept(long[] ntpResponse) {
-                              cacheTrueTimeInfo(ntpResponse);
-                              saveTrueTimeInfoToDisk();
-                          }
-                      });
-            }
-        };
-    }
-
-    private FlowableTransformer<String, InetAddress> resolveNtpPoolToIpAddresses() {
-        return new FlowableTransformer<String, InetAddress>() {
-            @Override
-            public Flowable<InetAddress> apply(Flowable<String> ntpPoolFlowable) {
-                return ntpPoolFlowable
-                      .observeOn(Schedulers.io())
-                      .flatMap(new Function<String, Publisher<InetAddress>>() {
-                          @Override
-                          public Flowable<InetAddress> apply(String ntpPoolAddress) {
-                              try {
-                                  TrueLog.d(TAG, "---- resolving ntpHost : " + ntpPoolAddress);
-                                  return Flowable.fromArray(InetAddress.getAllByName(ntpPoolAddress));
-                              } catch (UnknownHostException e) {
-                                  return Flowable.error(e);
-                              }
-                          }
-                      });
-            }
-        };
-    }
-
-    private Function<String, Flowable<long[]>> bestResponseAgainstSingleIp(final int repeatCount) {
-        return new Function<String, Flowable<long[]>>() {
-            @Override
-            public Flowable<long[]> apply(String singleIp) {
-                return Flowable
-                      .just(singleIp)
-                      .repeat(repeatCount)
-                      .flatMap(new Function<String, Publisher<long[]>>() {
-                          @Override
-                          public Flowable<long[]> apply(final String singleIpHostAddress) {
-                              return Flowable
-                                    .fromCallable(new Callable<long[]>() {
-                                        @Override
-                                        public long[] call() throws Exception {
-                                            TrueLog.d(TAG, "---- requestTime from: " + singleIpHostAddress);
-                                            return requestTime(singleIpHostAddress);
-                                        }
-                                    })
-                                    .subscribeOn(Schedulers.io())
-                                    .doOnError(new Consumer<Throwable>() {
-                                        @Override
-                                        public void accept(Throwable throwable) {
-                                            TrueLog.e(TAG, "---- Error requesting time", throwable);
-                                        }
-                                    })
-                                    .retry(_retryCount);
-                          }
-                      })
-                      .toList()
-                      .toFlowable()
-                      .onErrorReturnItem(new ArrayList<long[]>())
-                      .map(filterLeastRoundTripDelay()); // pick best response for each ip
-            }
-        };
-    }
-
-    private Function<List<long[]>, long[]> filterLeastRoundTripDelay() {
-        return new Function<List<long[]>, long[]>() {
+    private Single<long[]> sync(final String ntpPool, final InetAddress[] addresses) {
+        return Single.create(new SingleOnSubscribe<long[]>() {
             @Override
-            public long[] apply(List<long[]> responseTimeList) {
-                Collections.sort(responseTimeList, new Comparator<long[]>() {
+            public void subscribe(final SingleEmitter<long[]> emitter) {
+                RetryPolicy clockPolicy = clock().getRetryPolicy();
+                RetryPolicy retryPolicy = clockPolicy != null ? clockPolicy : new BackoffRetryPolicy(_retryCount);
+
+                final TrueTimeFuture future = clock().syncAsync(ntpPool,
+                                                                addresses,
+                                                                _serverCount,
+                                                                _samplesPerServer,
+                                                                retryPolicy,
+                                                                null,
+                                                                0L);
+                emitter.setCancellable(new Cancellable() {
                     @Override
-                    public int compare(long[] lhsParam, long[] rhsLongParam) {
-                        long lhs = SntpClient.getRoundTripDelay(lhsParam);
-                        long rhs = SntpClient.getRoundTripDelay(rhsLongParam);
-                        return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+                    public void cancel() {
+                        future.cancel(true);
                     }
                 });
+                future.addCallback(new TrueTimeFuture.Callback() {
+                    @Override
+                    public void onInitialized(Date now) {
+                        long[] response = future.getResponse();
+                        TrueLog.d(TAG, "---- bestResponse: " + Arrays.toString(response));
+                        emitter.onSuccess(response);
+                    }
 
-                TrueLog.d(TAG, "---- filterLeastRoundTrip: " + responseTimeList);
-
-                return responseTimeList.get(0);
-            }
-        };
-    }
-
-    private Function<List<long[]>, long[]> filterMedianResponse() {
-        return new Function<List<long[]>, long[]>() {
-            @Override
-            public long[] apply(List<long[]> bestResponses) {
-                Collections.sort(bestResponses, new Comparator<long[]>() {
                     @Override
-                    public int compare(long[] lhsParam, long[] rhsParam) {
-                        long lhs = SntpClient.getClockOffset(lhsParam);
-                        long rhs = SntpClient.getClockOffset(rhsParam);
-                        return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+                    public void onFailure(Exception e) {
+                        if (!emitter.isDisposed()) {
+                            emitter.onError(e);
+                        }
                     }
                 });
-
-                TrueLog.d(TAG, "---- bestResponse: " + Arrays.toString(bestResponses.get(bestResponses.size() / 2)));
-
-                return bestResponses.get(bestResponses.size() / 2);
             }
-        };
+        });
     }
 }
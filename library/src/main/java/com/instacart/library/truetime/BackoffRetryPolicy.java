@@ -0,0 +1,51 @@
+package com.instacart.library.truetime;
+
+import java.io.IOException;
+
+/**
+ * Exponential backoff with full jitter: retry n waits a random delay between 0 and
+ * min(maxDelay, baseDelay * 2^n), which keeps many clients from retrying in lockstep.
+ *
+ * Failures are handled by kind:
+ * - {@link KissOfDeathException}: the server asked us to back off (or we've reached its poll
+ *   interval), not retried: the sync moves on to the next server
+ * - other {@link InvalidNtpServerResponseException}s (stratum, leap, root delay/dispersion...) say
+ *   something about the server itself and won't get better by asking again: not retried
+ * - anything else (timeouts, network errors) is transient and retried
+ */
+public class BackoffRetryPolicy
+      implements RetryPolicy {
+
+    private static final long DEFAULT_BASE_DELAY_IN_MILLIS = 250L;
+    private static final long DEFAULT_MAX_DELAY_IN_MILLIS = 10_000L;
+
+    private final int _maxRetries;
+    private final long _baseDelayInMillis;
+    private final long _maxDelayInMillis;
+
+    public BackoffRetryPolicy(int maxRetries) {
+        this(maxRetries, DEFAULT_BASE_DELAY_IN_MILLIS, DEFAULT_MAX_DELAY_IN_MILLIS);
+    }
+
+    public BackoffRetryPolicy(int maxRetries, long baseDelayInMillis, long maxDelayInMillis) {
+        _maxRetries = maxRetries;
+        _baseDelayInMillis = baseDelayInMillis;
+        _maxDelayInMillis = maxDelayInMillis;
+    }
+
+    @Override
+    public long retryDelayMillis(int retryCount, IOException failure) {
+        if (retryCount >= _maxRetries) {
+            return STOP;
+        }
+
+        // including Kiss-o'-Death
+        if (failure instanceof InvalidNtpServerResponseException) {
+            return STOP;
+        }
+
+        // shift capped so the ceiling can't overflow
+        long ceiling = Math.min(_maxDelayInMillis, _baseDelayInMillis << Math.min(retryCount, 30));
+        return (long) (Math.random() * (ceiling + 1));
+    }
+}
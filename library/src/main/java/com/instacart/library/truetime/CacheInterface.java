@@ -5,6 +5,25 @@ public interface CacheInterface {
     String KEY_CACHED_BOOT_TIME = "com.instacart.library.truetime.cached_boot_time";
     String KEY_CACHED_DEVICE_UPTIME = "com.instacart.library.truetime.cached_device_uptime";
     String KEY_CACHED_SNTP_TIME = "com.instacart.library.truetime.cached_sntp_time";
+    String KEY_CACHED_DEVICE_UPTIME_NANOS = "com.instacart.library.truetime.cached_device_uptime_nanos";
+    String KEY_CACHED_SNTP_TIME_NANOS = "com.instacart.library.truetime.cached_sntp_time_nanos";
+    String KEY_CACHED_ROOT_DISTANCE_NANOS = "com.instacart.library.truetime.cached_root_distance_nanos";
+
+    /** slewing in progress in monotonic mode, so a restarted process resumes the same time line */
+    String KEY_CACHED_SLEW_START_UPTIME_NANOS = "com.instacart.library.truetime.cached_slew_start_uptime_nanos";
+    String KEY_CACHED_SLEW_WINDOW_NANOS = "com.instacart.library.truetime.cached_slew_window_nanos";
+    String KEY_CACHED_SLEW_CORRECTION_NANOS = "com.instacart.library.truetime.cached_slew_correction_nanos";
+
+    /** oscillator drift in parts per billion. A property of the device, so it stays valid across boots */
+    String KEY_CACHED_CLOCK_DRIFT_PPB = "com.instacart.library.truetime.cached_clock_drift_ppb";
+
+    /**
+     * Last good DNS answer for the NTP host, so a cold start doesn't wait for DNS. Like the drift,
+     * it doesn't depend on the boot. IPv4 addresses only, as longs suffixed with their index
+     */
+    String KEY_CACHED_NTP_HOST_HASH = "com.instacart.library.truetime.cached_ntp_host_hash";
+    String KEY_CACHED_NTP_ADDRESS_COUNT = "com.instacart.library.truetime.cached_ntp_address_count";
+    String KEY_CACHED_NTP_ADDRESS = "com.instacart.library.truetime.cached_ntp_address_";
 
     void put(String key, long value);
 
@@ -0,0 +1,93 @@
+package com.instacart.library.truetime;
+
+/**
+ * Estimates the frequency error of the device oscillator ({@link android.os.SystemClock#elapsedRealtime()})
+ * from the history of syncs.
+ *
+ * Every sync gives a point (device uptime, offset) where offset = true time - device uptime. A perfect
+ * oscillator would give a constant offset; a drifting one gives an offset that changes linearly with
+ * uptime. The slope is estimated with the Theil-Sen estimator (median of the pairwise slopes), so a
+ * few bad syncs don't throw off the estimate.
+ */
+final class ClockDriftEstimator {
+
+    private static final String TAG = ClockDriftEstimator.class.getSimpleName();
+
+    /** number of sync points kept */
+    private static final int HISTORY_SIZE = 8;
+
+    /** points closer than this are too noisy (offset error of ~ms) to compute a meaningful slope */
+    private static final long MIN_SPAN_NANOS = 10L * 60L * 1_000_000_000L;
+
+    /** anything beyond 500 PPM is not oscillator drift but a broken measurement */
+    static final double MAX_DRIFT_RATE = 500e-6;
+
+    private final long[] _deviceUptimesNanos = new long[HISTORY_SIZE];
+    private final long[] _offsetsNanos = new long[HISTORY_SIZE];
+    private final double[] _slopes = new double[HISTORY_SIZE * (HISTORY_SIZE - 1) / 2];
+
+    private int _count = 0;
+    private int _next = 0;
+    private double _driftRate = 0D;
+
+    /**
+     * @param driftRate estimate (e.g. persisted from a previous run) to use until there's enough history
+     */
+    synchronized void seed(double driftRate) {
+        if (_count < 2) {
+            _driftRate = clamp(driftRate);
+        }
+    }
+
+    /**
+     * @param deviceUptimeNanos device uptime at the moment of the sync
+     * @param offsetNanos true time - device uptime, as computed by the sync
+     * @return updated drift rate: true time advances by (1 + drift rate) per unit of device uptime
+     */
+    synchronized double addSyncPoint(long deviceUptimeNanos, long offsetNanos) {
+        if (_count > 0 && deviceUptimeNanos < _deviceUptimesNanos[(_next + HISTORY_SIZE - 1) % HISTORY_SIZE]) {
+            // device rebooted, uptimes of previous points aren't comparable anymore
+            _count = 0;
+            _next = 0;
+        }
+
+        _deviceUptimesNanos[_next] = deviceUptimeNanos;
+        _offsetsNanos[_next] = offsetNanos;
+        _next = (_next + 1) % HISTORY_SIZE;
+        _count = Math.min(_count + 1, HISTORY_SIZE);
+
+        int slopeCount = 0;
+        for (int i = 0; i < _count; i++) {
+            for (int j = i + 1; j < _count; j++) {
+                long span = _deviceUptimesNanos[j] - _deviceUptimesNanos[i];
+                if (Math.abs(span) >= MIN_SPAN_NANOS) {
+                    _slopes[slopeCount++] = (_offsetsNanos[j] - _offsetsNanos[i]) / (double) span;
+                }
+            }
+        }
+
+        if (slopeCount > 0) {
+            double median = QuickSelect.select(_slopes, slopeCount, slopeCount / 2);
+            if (slopeCount % 2 == 0) {
+                // the lower middle slope is the greatest of the ones selected before
+                double lower = _slopes[0];
+                for (int i = 1; i < slopeCount / 2; i++) {
+                    lower = Math.max(lower, _slopes[i]);
+                }
+                median = (lower + median) / 2D;
+            }
+            _driftRate = clamp(median);
+            TrueLog.d(TAG, "---- clock drift estimate " + (_driftRate * 1e6) + " PPM from " + slopeCount + " pairs");
+        }
+
+        return _driftRate;
+    }
+
+    synchronized double getDriftRate() {
+        return _driftRate;
+    }
+
+    private static double clamp(double driftRate) {
+        return Math.max(-MAX_DRIFT_RATE, Math.min(MAX_DRIFT_RATE, driftRate));
+    }
+}
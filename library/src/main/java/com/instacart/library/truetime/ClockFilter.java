@@ -0,0 +1,158 @@
+package com.instacart.library.truetime;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Clock filter of RFC 5905 (section 10), one per server: a shift register of the last 8 samples
+ * kept across syncs.
+ *
+ * The sample with the lowest round trip delay, the least affected by queuing, is selected. Every
+ * sample's dispersion grows with its age, so old samples weigh less in the server's dispersion, and
+ * the spread of the offsets gives the server's jitter. Both widen the selected sample's correctness
+ * interval (RESPONSE_INDEX_OFFSET_LOW_NANOS and RESPONSE_INDEX_OFFSET_HIGH_NANOS).
+ *
+ * Once the register holds a few samples, a periodic sync gets filtered quality from a single
+ * request per server instead of a fresh batch every time.
+ */
+final class ClockFilter {
+
+    /** stages of the register, NSTAGE in RFC 5905 */
+    static final int STAGES = 8;
+
+    /** samples after which a single request per server is enough */
+    static final int WARM_STAGES = 4;
+
+    /** frequency tolerance, PHI in RFC 5905: 15 PPM */
+    private static final double PHI = 15e-6;
+
+    /** samples dispersed beyond this are useless, MAXDISP in RFC 5905 */
+    private static final long MAX_DISPERSION_NANOS = 16_000_000_000L;
+
+    // by server id, see SntpClient.serverId
+    private final ConcurrentHashMap<Long, Register> _registers = new ConcurrentHashMap<>();
+
+    /**
+     * Shifts a copy of response into the register of the server that sent it (its
+     * RESPONSE_INDEX_SERVER_ID, whatever it was requested from), the caller keeps owning response
+     *
+     * @param selected array of {@link SntpClient#RESPONSE_INDEX_SIZE} the selected sample is written to,
+     *                 its offset interval widened by the server's dispersion and jitter. It can be an
+     *                 older sample than response
+     * @return selected
+     */
+    long[] add(long[] response, long[] selected) {
+        return register(SntpClient.getServerId(response)).add(response, selected);
+    }
+
+    /**
+     * @return true if the register of address holds enough samples for a single request per sync
+     */
+    boolean isWarm(InetAddress address) {
+        Register register = _registers.get(SntpClient.serverId(address));
+        return register != null && register.size() >= WARM_STAGES;
+    }
+
+    void clear() {
+        _registers.clear();
+    }
+
+    private Register register(long serverId) {
+        Register register = _registers.get(serverId);
+        if (register == null) {
+            _registers.putIfAbsent(serverId, new Register());
+            register = _registers.get(serverId);
+        }
+        return register;
+    }
+
+    private static final class Register {
+
+        // guarded by this, stage 0 is the newest sample
+        private final long[][] _samples = new long[STAGES][SntpClient.RESPONSE_INDEX_SIZE];
+        private final long[] _offsets = new long[STAGES];
+        private final long[] _delays = new long[STAGES];
+        private final long[] _dispersions = new long[STAGES];
+        private final long[] _times = new long[STAGES];
+        private final int[] _order = new int[STAGES];
+        private int _size = 0;
+
+        synchronized int size() {
+            return _size;
+        }
+
+        synchronized long[] add(long[] response, long[] selected) {
+            long now = response[SntpClient.RESPONSE_INDEX_RESPONSE_TICKS_NANOS];
+            if (_size > 0 && now < _times[0]) {
+                // device rebooted, the ages of the samples are unknown
+                _size = 0;
+            }
+
+            // the oldest stage's array is reused for the new sample
+            long[] sample = _samples[STAGES - 1];
+            for (int i = STAGES - 1; i > 0; i--) {
+                _samples[i] = _samples[i - 1];
+                _offsets[i] = _offsets[i - 1];
+                _delays[i] = _delays[i - 1];
+                _dispersions[i] = _dispersions[i - 1];
+                _times[i] = _times[i - 1];
+            }
+
+            long delay = Math.abs(SntpClient.getRoundTripDelayNanos(response));
+            System.arraycopy(response, 0, sample, 0, SntpClient.RESPONSE_INDEX_SIZE);
+            _samples[0] = sample;
+            _offsets[0] = SntpClient.getClockOffsetNanos(response);
+            _delays[0] = delay;
+            _dispersions[0] = (long) (PHI * delay);
+            _times[0] = now;
+            _size = Math.min(_size + 1, STAGES);
+
+            // stages by increasing delay, samples too dispersed last
+            int count = 0;
+            for (int i = 0; i < _size; i++) {
+                long key = sortKey(i, now);
+                int j = count++;
+                while (j > 0 && sortKey(_order[j - 1], now) > key) {
+                    _order[j] = _order[j - 1];
+                    j--;
+                }
+                _order[j] = i;
+            }
+
+            int best = _order[0];
+
+            // server dispersion: stages weighted by 1/2, 1/4, ... in order of delay
+            double dispersion = 0D;
+            double jitter = 0D;
+            int valid = 0;
+            for (int k = 0; k < _size; k++) {
+                int i = _order[k];
+                long dispersionI = dispersion(i, now);
+                dispersion += Math.min(dispersionI, MAX_DISPERSION_NANOS) / (double) (2L << k);
+                if (dispersionI < MAX_DISPERSION_NANOS) {
+                    double difference = _offsets[i] - _offsets[best];
+                    jitter += difference * difference;
+                    valid++;
+                }
+            }
+            jitter = Math.sqrt(jitter / Math.max(1, valid - 1));
+
+            System.arraycopy(_samples[best], 0, selected, 0, SntpClient.RESPONSE_INDEX_SIZE);
+            long widening = (long) dispersion + (long) jitter;
+            selected[SntpClient.RESPONSE_INDEX_OFFSET_LOW_NANOS] -= widening;
+            selected[SntpClient.RESPONSE_INDEX_OFFSET_HIGH_NANOS] += widening;
+            return selected;
+        }
+
+        private long sortKey(int i, long now) {
+            return dispersion(i, now) >= MAX_DISPERSION_NANOS ? Long.MAX_VALUE : _delays[i];
+        }
+
+        /**
+         * @return dispersion of stage i, grown since its sample was taken
+         */
+        private long dispersion(int i, long now) {
+            return _dispersions[i] + (long) (PHI * (now - _times[i]));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.instacart.library.truetime;
+
+/**
+ * Clock selection of RFC 5905 (section 11.2.1), after Marzullo's algorithm.
+ *
+ * Every server's correctness interval, between RESPONSE_INDEX_OFFSET_LOW_NANOS and
+ * RESPONSE_INDEX_OFFSET_HIGH_NANOS, is its offset ± its root distance (see
+ * {@link SntpClient#getRootDistanceNanos(long[])}), widened by {@link ClockFilter} when enabled. The
+ * true offset lies within it if the server is right (a truechimer). The algorithm finds the smallest
+ * interval shared by a majority of the servers' intervals, allowing for as few wrong servers
+ * (falsetickers) as possible. Servers whose offset falls outside of it are discarded, whatever their
+ * round trip delay.
+ *
+ * Unlike a plain median, a server with a wide interval barely constrains the result, so fewer
+ * servers are needed for the same accuracy.
+ */
+final class ClockSelection {
+
+    private static final String TAG = ClockSelection.class.getSimpleName();
+
+    private ClockSelection() {
+    }
+
+    /**
+     * Selects the truechimer with the narrowest correctness interval, and returns a copy of its response
+     * with the intersection interval in RESPONSE_INDEX_OFFSET_LOW_NANOS and RESPONSE_INDEX_OFFSET_HIGH_NANOS.
+     *
+     * @param samples the candidates, the best response of each server
+     * @throws InvalidNtpServerResponseException if no majority of servers agree
+     */
+    static long[] select(SampleBuffer samples) throws InvalidNtpServerResponseException {
+        int count = samples.size();
+        long[] interval = new long[2];
+        int survivors = intersect(samples, interval);
+        if (survivors == 0) {
+            throw new InvalidNtpServerResponseException("no majority of the " + count + " NTP servers agree on the time");
+        }
+
+        long low = interval[0];
+        long high = interval[1];
+        int selected = -1;
+        for (int i = 0; i < count; i++) {
+            long offset = samples.offset(i);
+            if (offset >= low && offset <= high &&
+                (selected < 0 || width(samples, i) < width(samples, selected))) {
+                selected = i;
+            }
+        }
+
+        TrueLog.d(TAG, "---- " + survivors + " truechimers out of " + count + " servers, offset within [" +
+                       low + ", " + high + "]ns");
+
+        // a copy: the buffer's rows are overwritten as late samples land
+        long[] response = samples.response(selected).clone();
+        response[SntpClient.RESPONSE_INDEX_OFFSET_LOW_NANOS] = low;
+        response[SntpClient.RESPONSE_INDEX_OFFSET_HIGH_NANOS] = high;
+        return response;
+    }
+
+    /**
+     * The intersection step of {@link #select(SampleBuffer)}, without modifying the responses.
+     *
+     * The endpoints are walked in order by merging the low bounds, offsets and high bounds, which the
+     * buffer keeps sorted.
+     * Equal edges are ordered low, offset then high so touching intervals count as overlapping.
+     *
+     * @param interval the intersection interval is written there: low then high bound
+     * @return number of truechimers, 0 if no majority of servers agree
+     */
+    static int intersect(SampleBuffer samples, long[] interval) {
+        int count = samples.size();
+
+        long low = 0L;
+        long high = 0L;
+        int allowed;
+        for (allowed = 0; 2 * allowed < count; allowed++) {
+            // offsets outside of [low, high]: there are at least that many falsetickers
+            int found = 0;
+
+            // from the lowest edge up. A low bound is never above its own offset and high bound, so
+            // fewer low bounds than offsets and high bounds have been passed at any point
+            int chime = 0;
+            int l = 0;
+            int m = 0;
+            int h = 0;
+            while (h < count) {
+                if (l < count && samples.sortedLow(l) <= samples.sortedOffset(m) &&
+                    samples.sortedLow(l) <= samples.sortedHigh(h)) {
+                    chime++;
+                    if (chime >= count - allowed) {
+                        low = samples.sortedLow(l);
+                        break;
+                    }
+                    l++;
+                } else if (m < count && samples.sortedOffset(m) <= samples.sortedHigh(h)) {
+                    found++;
+                    m++;
+                } else {
+                    chime--;
+                    h++;
+                }
+            }
+
+            // from the highest edge down, the other way around
+            chime = 0;
+            l = count - 1;
+            m = count - 1;
+            h = count - 1;
+            while (l >= 0) {
+                if (h >= 0 && samples.sortedHigh(h) >= samples.sortedOffset(m) &&
+                    samples.sortedHigh(h) >= samples.sortedLow(l)) {
+                    chime++;
+                    if (chime >= count - allowed) {
+                        high = samples.sortedHigh(h);
+                        break;
+                    }
+                    h--;
+                } else if (m >= 0 && samples.sortedOffset(m) >= samples.sortedLow(l)) {
+                    found++;
+                    m--;
+                } else {
+                    chime--;
+                    l--;
+                }
+            }
+
+            if (found <= allowed && low <= high) {
+                break;
+            }
+        }
+
+        if (2 * allowed >= count) {
+            return 0;
+        }
+
+        int survivors = 0;
+        for (int i = 0; i < count; i++) {
+            long offset = samples.offset(i);
+            if (offset >= low && offset <= high) {
+                survivors++;
+            }
+        }
+
+        interval[0] = low;
+        interval[1] = high;
+        return survivors;
+    }
+
+    private static long width(SampleBuffer samples, int row) {
+        return samples.high(row) - samples.low(row);
+    }
+}
@@ -1,16 +1,40 @@
 package com.instacart.library.truetime;
 
 import android.os.SystemClock;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.instacart.library.truetime.CacheInterface.KEY_CACHED_BOOT_TIME;
+import static com.instacart.library.truetime.CacheInterface.KEY_CACHED_CLOCK_DRIFT_PPB;
 import static com.instacart.library.truetime.CacheInterface.KEY_CACHED_DEVICE_UPTIME;
+import static com.instacart.library.truetime.CacheInterface.KEY_CACHED_DEVICE_UPTIME_NANOS;
+import static com.instacart.library.truetime.CacheInterface.KEY_CACHED_NTP_ADDRESS;
+import static com.instacart.library.truetime.CacheInterface.KEY_CACHED_NTP_ADDRESS_COUNT;
+import static com.instacart.library.truetime.CacheInterface.KEY_CACHED_NTP_HOST_HASH;
+import static com.instacart.library.truetime.CacheInterface.KEY_CACHED_ROOT_DISTANCE_NANOS;
+import static com.instacart.library.truetime.CacheInterface.KEY_CACHED_SLEW_CORRECTION_NANOS;
+import static com.instacart.library.truetime.CacheInterface.KEY_CACHED_SLEW_START_UPTIME_NANOS;
+import static com.instacart.library.truetime.CacheInterface.KEY_CACHED_SLEW_WINDOW_NANOS;
 import static com.instacart.library.truetime.CacheInterface.KEY_CACHED_SNTP_TIME;
+import static com.instacart.library.truetime.CacheInterface.KEY_CACHED_SNTP_TIME_NANOS;
 
 class DiskCacheClient {
 
     private static final String TAG = DiskCacheClient.class.getSimpleName();
 
-    private CacheInterface _cacheInterface = null;
+    /** more than enough for a pool answer */
+    private static final int MAX_CACHED_NTP_ADDRESSES = 8;
+
+    private volatile CacheInterface _cacheInterface = null;
+
+    /**
+     * In-memory copy of what's persisted, so reads never go through {@link CacheInterface}.
+     * Every invalidation installs a new unloaded instance, so a read of the cache that started
+     * before can't publish its result afterwards.
+     */
+    private final AtomicReference<Memo> _memo = new AtomicReference<>(new Memo());
 
     /**
      * Provide your own cache interface to cache the true time information.
@@ -18,6 +42,7 @@ class DiskCacheClient {
      */
     void enableCacheInterface(CacheInterface cacheInterface) {
         this._cacheInterface = cacheInterface;
+        _memo.set(new Memo());
     }
 
     void clearCachedInfo() {
@@ -32,15 +57,16 @@ class DiskCacheClient {
         if (cacheInterface != null) {
             cacheInterface.clear();
         }
+        _memo.set(new Memo());
     }
 
-    void cacheTrueTimeInfo(SntpClient sntpClient) {
+    void cacheTrueTimeInfo(TrueTimeSnapshot snapshot) {
         if (cacheUnavailable()) {
             return;
         }
 
-        long cachedSntpTime = sntpClient.getCachedSntpTime();
-        long cachedDeviceUptime = sntpClient.getCachedDeviceUptime();
+        long cachedSntpTime = snapshot.sntpTime;
+        long cachedDeviceUptime = snapshot.deviceUptime;
         long bootTime = cachedSntpTime - cachedDeviceUptime;
 
         TrueLog.d(TAG,
@@ -52,42 +78,171 @@ class DiskCacheClient {
         _cacheInterface.put(KEY_CACHED_BOOT_TIME, bootTime);
         _cacheInterface.put(KEY_CACHED_DEVICE_UPTIME, cachedDeviceUptime);
         _cacheInterface.put(KEY_CACHED_SNTP_TIME, cachedSntpTime);
+        _cacheInterface.put(KEY_CACHED_DEVICE_UPTIME_NANOS, snapshot.deviceUptimeNanos);
+        _cacheInterface.put(KEY_CACHED_SNTP_TIME_NANOS, snapshot.sntpTimeNanos);
+        _cacheInterface.put(KEY_CACHED_ROOT_DISTANCE_NANOS, snapshot.rootDistanceNanos);
+        _cacheInterface.put(KEY_CACHED_CLOCK_DRIFT_PPB, Math.round(snapshot.driftRate * 1e9));
+        _cacheInterface.put(KEY_CACHED_SLEW_START_UPTIME_NANOS, snapshot.getSlewStartUptimeNanos());
+        _cacheInterface.put(KEY_CACHED_SLEW_WINDOW_NANOS, snapshot.getSlewWindowNanos());
+        _cacheInterface.put(KEY_CACHED_SLEW_CORRECTION_NANOS, snapshot.getSlewCorrectionNanos());
 
+        _memo.set(new Memo(snapshot));
     }
 
     boolean isTrueTimeCachedFromAPreviousBoot() {
+        return getCachedSnapshot() != null;
+    }
+
+    /**
+     * @return the persisted sync info if it's usable in this boot, null otherwise.
+     * Only the first call after a (re)configuration or clear reads from the {@link CacheInterface}.
+     */
+    TrueTimeSnapshot getCachedSnapshot() {
+        Memo memo = _memo.get();
+        while (!memo.loaded) {
+            // only published if nothing was invalidated or cached meanwhile
+            _memo.compareAndSet(memo, new Memo(loadSnapshot()));
+            memo = _memo.get();
+        }
+
+        return memo.snapshot;
+    }
+
+    /**
+     * Unlike the rest of the sync info, the drift is a property of the device's oscillator
+     * and is read even if the rest of the cache is from a previous boot.
+     *
+     * @return last persisted oscillator drift estimate, see {@link ClockDriftEstimator}
+     */
+    double getCachedDriftRate() {
         if (cacheUnavailable()) {
-            return false;
+            return 0D;
         }
 
-        long cachedBootTime = _cacheInterface.get(KEY_CACHED_BOOT_TIME, 0L);
-        if (cachedBootTime == 0) {
-            return false;
+        return _cacheInterface.get(KEY_CACHED_CLOCK_DRIFT_PPB, 0L) / 1e9;
+    }
+
+    /**
+     * Persists the IPv4 addresses of ntpHost, see {@link DnsCache}
+     */
+    void cacheNtpAddresses(String ntpHost, InetAddress[] addresses) {
+        if (_cacheInterface == null) {
+            return;
         }
 
-        // has boot time changed (simple check)
-        boolean bootTimeChanged = SystemClock.elapsedRealtime() < getCachedDeviceUptime();
-        TrueLog.i(TAG, "---- boot time changed " + bootTimeChanged);
-        return !bootTimeChanged;
+        int count = 0;
+        for (InetAddress address : addresses) {
+            if (count == MAX_CACHED_NTP_ADDRESSES) {
+                break;
+            }
+            if (address instanceof Inet4Address) {
+                _cacheInterface.put(KEY_CACHED_NTP_ADDRESS + count, ipv4ToLong(address.getAddress()));
+                count++;
+            }
+        }
+
+        _cacheInterface.put(KEY_CACHED_NTP_ADDRESS_COUNT, count);
+        _cacheInterface.put(KEY_CACHED_NTP_HOST_HASH, ntpHost.hashCode());
     }
 
-    long getCachedDeviceUptime() {
-        if (cacheUnavailable()) {
-            return 0L;
+    /**
+     * @return the last addresses persisted for ntpHost, null if there are none
+     */
+    InetAddress[] getCachedNtpAddresses(String ntpHost) {
+        if (_cacheInterface == null) {
+            return null;
+        }
+
+        int count = (int) _cacheInterface.get(KEY_CACHED_NTP_ADDRESS_COUNT, 0L);
+        if (count == 0 || _cacheInterface.get(KEY_CACHED_NTP_HOST_HASH, 0L) != ntpHost.hashCode()) {
+            return null;
+        }
+
+        InetAddress[] addresses = new InetAddress[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                long ip = _cacheInterface.get(KEY_CACHED_NTP_ADDRESS + i, 0L);
+                addresses[i] = InetAddress.getByAddress(ntpHost, new byte[]{
+                      (byte) (ip >> 24), (byte) (ip >> 16), (byte) (ip >> 8), (byte) ip
+                });
+            }
+        } catch (UnknownHostException e) {
+            // only thrown for addresses of illegal length
+            return null;
         }
 
-        return _cacheInterface.get(KEY_CACHED_DEVICE_UPTIME, 0L);
+        return addresses;
+    }
+
+    long getCachedDeviceUptime() {
+        TrueTimeSnapshot snapshot = getCachedSnapshot();
+        return snapshot == null ? 0L : snapshot.deviceUptime;
     }
 
     long getCachedSntpTime() {
+        TrueTimeSnapshot snapshot = getCachedSnapshot();
+        return snapshot == null ? 0L : snapshot.sntpTime;
+    }
+
+    // -----------------------------------------------------------------------------------
+
+    /**
+     * @return the persisted sync info, null if there is none usable in this boot
+     */
+    private TrueTimeSnapshot loadSnapshot() {
         if (cacheUnavailable()) {
-            return 0L;
+            return null;
+        }
+
+        long cachedBootTime = _cacheInterface.get(KEY_CACHED_BOOT_TIME, 0L);
+        if (cachedBootTime == 0) {
+            return null;
+        }
+
+        long cachedDeviceUptime = _cacheInterface.get(KEY_CACHED_DEVICE_UPTIME, 0L);
+        long cachedSntpTime = _cacheInterface.get(KEY_CACHED_SNTP_TIME, 0L);
+        if (cachedDeviceUptime == 0L || cachedSntpTime == 0L) {
+            return null;
+        }
+
+        // has boot time changed (simple check)
+        boolean bootTimeChanged = SystemClock.elapsedRealtime() < cachedDeviceUptime;
+        TrueLog.i(TAG, "---- boot time changed " + bootTimeChanged);
+        if (bootTimeChanged) {
+            return null;
+        }
+
+        long cachedDeviceUptimeNanos = _cacheInterface.get(KEY_CACHED_DEVICE_UPTIME_NANOS, 0L);
+        long cachedSntpTimeNanos = _cacheInterface.get(KEY_CACHED_SNTP_TIME_NANOS, 0L);
+        if (Math.abs(cachedDeviceUptimeNanos / 1_000_000L - cachedDeviceUptime) > 1 ||
+            Math.abs(cachedSntpTimeNanos / 1_000_000L - cachedSntpTime) > 1) {
+            // cached by an older version, or not written along with the millisecond values
+            return new TrueTimeSnapshot(cachedSntpTime, cachedDeviceUptime, 0L);
         }
 
-        return _cacheInterface.get(KEY_CACHED_SNTP_TIME, 0L);
+        long cachedRootDistanceNanos = _cacheInterface.get(KEY_CACHED_ROOT_DISTANCE_NANOS,
+                                                           TrueTimeSnapshot.UNKNOWN_ROOT_DISTANCE_NANOS);
+        double cachedDriftRate = _cacheInterface.get(KEY_CACHED_CLOCK_DRIFT_PPB, 0L) / 1e9;
+
+        // the same boot, so a slew in progress resumes where the previous process left it
+        return new TrueTimeSnapshot(cachedSntpTime,
+                                    cachedDeviceUptime,
+                                    cachedSntpTimeNanos,
+                                    cachedDeviceUptimeNanos,
+                                    0L,
+                                    cachedRootDistanceNanos,
+                                    cachedDriftRate,
+                                    _cacheInterface.get(KEY_CACHED_SLEW_START_UPTIME_NANOS, 0L),
+                                    _cacheInterface.get(KEY_CACHED_SLEW_WINDOW_NANOS, 0L),
+                                    _cacheInterface.get(KEY_CACHED_SLEW_CORRECTION_NANOS, 0L));
     }
 
-    // -----------------------------------------------------------------------------------
+    private static long ipv4ToLong(byte[] address) {
+        return ((address[0] & 0xFFL) << 24) |
+               ((address[1] & 0xFFL) << 16) |
+               ((address[2] & 0xFFL) << 8) |
+               (address[3] & 0xFFL);
+    }
 
     private boolean cacheUnavailable() {
         if (_cacheInterface == null) {
@@ -96,4 +251,23 @@ class DiskCacheClient {
         }
         return false;
     }
+
+    /**
+     * State of {@link #_memo}: either not read yet, or the snapshot read (null if there was none)
+     */
+    private static final class Memo {
+
+        final boolean loaded;
+        final TrueTimeSnapshot snapshot;
+
+        Memo() {
+            loaded = false;
+            snapshot = null;
+        }
+
+        Memo(TrueTimeSnapshot snapshot) {
+            loaded = true;
+            this.snapshot = snapshot;
+        }
+    }
 }
@@ -0,0 +1,153 @@
+package com.instacart.library.truetime;
+
+import android.os.SystemClock;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves NTP host names, remembering the answers so DNS isn't queried on every sample.
+ *
+ * - positive answers are reused for a TTL. Java doesn't expose the record's TTL, so a fixed one is used
+ * - failures are remembered for a shorter time so a broken network isn't hammered with lookups
+ * - the last good answer is persisted through {@link DiskCacheClient}. On a cold start it's used
+ *   right away while DNS is refreshed in the background
+ */
+class DnsCache {
+
+    private static final String TAG = DnsCache.class.getSimpleName();
+
+    /** pool.ntp.org answers with a TTL of around 150s */
+    static final long DEFAULT_TTL_IN_MILLIS = 150_000L;
+
+    static final long NEGATIVE_TTL_IN_MILLIS = 30_000L;
+
+    private final DiskCacheClient _diskCacheClient;
+    private final ConcurrentHashMap<String, Entry> _entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Boolean> _refreshing = new ConcurrentHashMap<>();
+
+    private volatile long _ttlInMillis = DEFAULT_TTL_IN_MILLIS;
+
+    DnsCache(DiskCacheClient diskCacheClient) {
+        _diskCacheClient = diskCacheClient;
+    }
+
+    void setTtl(long ttlInMillis) {
+        _ttlInMillis = ttlInMillis;
+    }
+
+    InetAddress resolve(String host) throws UnknownHostException {
+        return resolveAll(host)[0];
+    }
+
+    /**
+     * @return every address of host, from memory if it was resolved within the TTL,
+     * from the last persisted answer (refreshed in the background) on a cold start.
+     * The array is shared, don't modify it
+     */
+    InetAddress[] resolveAll(String host) throws UnknownHostException {
+        long now = elapsedRealtime();
+
+        Entry entry = _entries.get(host);
+        if (entry != null && now < entry.expiresAt) {
+            return entry.get(host);
+        }
+
+        if (entry != null && entry.addresses != null && _refreshing.containsKey(host)) {
+            return entry.addresses;
+        }
+
+        if (entry == null) {
+            InetAddress[] persisted = _diskCacheClient.getCachedNtpAddresses(host);
+            if (persisted != null) {
+                TrueLog.d(TAG, "---- using persisted addresses for " + host);
+                // expired straight away: served once while the refresh is in flight
+                _entries.putIfAbsent(host, new Entry(persisted, null, now));
+                refreshInBackground(host);
+                return persisted;
+            }
+        }
+
+        return lookup(host, entry).get(host);
+    }
+
+    void clear() {
+        _entries.clear();
+    }
+
+    /**
+     * Clock the TTLs are measured with, overridden by tests
+     */
+    long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Resolves host with DNS, overridden by tests
+     */
+    InetAddress[] query(String host) throws UnknownHostException {
+        return InetAddress.getAllByName(host);
+    }
+
+    // -----------------------------------------------------------------------------------
+
+    private Entry lookup(String host, Entry previous) {
+        Entry entry;
+        try {
+            TrueLog.d(TAG, "---- resolving ntpHost : " + host);
+            InetAddress[] addresses = query(host);
+            entry = new Entry(addresses, null, elapsedRealtime() + _ttlInMillis);
+            _diskCacheClient.cacheNtpAddresses(host, addresses);
+        } catch (UnknownHostException e) {
+            TrueLog.w(TAG, "---- failed resolving " + host);
+            if (previous != null && previous.addresses != null) {
+                // better a stale answer than none: NTP servers rarely move
+                entry = new Entry(previous.addresses, null, elapsedRealtime() + NEGATIVE_TTL_IN_MILLIS);
+            } else {
+                entry = new Entry(null, e, elapsedRealtime() + NEGATIVE_TTL_IN_MILLIS);
+            }
+        }
+
+        _entries.put(host, entry);
+        return entry;
+    }
+
+    private void refreshInBackground(final String host) {
+        if (_refreshing.putIfAbsent(host, Boolean.TRUE) != null) {
+            return;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    lookup(host, _entries.get(host));
+                } finally {
+                    _refreshing.remove(host);
+                }
+            }
+        }, "TrueTime-DNS");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static final class Entry {
+
+        final InetAddress[] addresses;
+        final UnknownHostException error;
+        final long expiresAt;
+
+        Entry(InetAddress[] addresses, UnknownHostException error, long expiresAt) {
+            this.addresses = addresses;
+            this.error = error;
+            this.expiresAt = expiresAt;
+        }
+
+        InetAddress[] get(String host) throws UnknownHostException {
+            if (addresses == null) {
+                throw new UnknownHostException(host + " (cached failure: " + error.getMessage() + ")");
+            }
+            return addresses;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.instacart.library.truetime;
+
+/**
+ * The server answered with a Kiss-o'-Death packet (stratum 0): it's telling clients to slow down
+ * or go away, and must not be queried again soon. See RFC 5905 section 7.4.
+ *
+ * Also thrown without sending anything while a previous kiss from the server is still in effect, or
+ * with {@link #KISS_CODE_RATE} when the server was already sent as many requests as its poll
+ * interval allows, see {@link ServerRateLimiter}. It is never retried within a sync, the next server
+ * is sampled instead.
+ */
+public class KissOfDeathException
+      extends InvalidNtpServerResponseException {
+
+    /** the server is rate limiting this client */
+    public static final String KISS_CODE_RATE = "RATE";
+
+    /** access denied by the server */
+    public static final String KISS_CODE_DENY = "DENY";
+
+    /** access restricted by the server */
+    public static final String KISS_CODE_RSTR = "RSTR";
+
+    /** four letter code from the reference id of the packet, e.g. {@link #KISS_CODE_RATE} */
+    public final String kissCode;
+
+    KissOfDeathException(String detailMessage, String kissCode) {
+        super(detailMessage);
+        this.kissCode = kissCode;
+    }
+
+    /**
+     * @return true if the server asked never to be queried again
+     */
+    public boolean isAccessDenied() {
+        return KISS_CODE_DENY.equals(kissCode) || KISS_CODE_RSTR.equals(kissCode);
+    }
+}
@@ -0,0 +1,44 @@
+package com.instacart.library.truetime;
+
+/**
+ * Lets several {@link TrueTimeClock}s share a single {@link CacheInterface} by prefixing keys
+ */
+class NamespacedCacheInterface implements CacheInterface {
+
+    private final CacheInterface _delegate;
+    private final String _prefix;
+
+    NamespacedCacheInterface(CacheInterface delegate, String namespace) {
+        _delegate = delegate;
+        _prefix = namespace + ":";
+    }
+
+    @Override
+    public void put(String key, long value) {
+        _delegate.put(_prefix + key, value);
+    }
+
+    @Override
+    public long get(String key, long defaultValue) {
+        return _delegate.get(_prefix + key, defaultValue);
+    }
+
+    /**
+     * The delegate's clear() would wipe every namespace, so only this namespace's entries are reset.
+     * 0 is read back as "not cached".
+     */
+    @Override
+    public void clear() {
+        put(KEY_CACHED_BOOT_TIME, 0L);
+        put(KEY_CACHED_DEVICE_UPTIME, 0L);
+        put(KEY_CACHED_SNTP_TIME, 0L);
+        put(KEY_CACHED_DEVICE_UPTIME_NANOS, 0L);
+        put(KEY_CACHED_SNTP_TIME_NANOS, 0L);
+        put(KEY_CACHED_ROOT_DISTANCE_NANOS, 0L);
+        put(KEY_CACHED_SLEW_START_UPTIME_NANOS, 0L);
+        put(KEY_CACHED_SLEW_WINDOW_NANOS, 0L);
+        put(KEY_CACHED_SLEW_CORRECTION_NANOS, 0L);
+        put(KEY_CACHED_NTP_HOST_HASH, 0L);
+        put(KEY_CACHED_NTP_ADDRESS_COUNT, 0L);
+    }
+}
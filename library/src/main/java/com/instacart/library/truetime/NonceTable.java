@@ -0,0 +1,124 @@
+package com.instacart.library.truetime;
+
+/**
+ * Requests in flight indexed by their nonce: the raw transmit timestamp a server echoes back as the
+ * originate timestamp of its response (see {@link SntpClient#requestKey(byte[])}).
+ *
+ * Open addressing on primitive keys, so looking up an incoming datagram neither boxes nor allocates
+ * and mismatched datagrams are dropped before being parsed. Not thread safe.
+ */
+final class NonceTable<T> {
+
+    private long[] _keys;
+    private Object[] _values;
+    private int _mask;
+    private int _size = 0;
+
+    NonceTable(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(long key) {
+        for (int i = slot(key); ; i = (i + 1) & _mask) {
+            Object value = _values[i];
+            if (value == null || _keys[i] == key) {
+                return (T) value;
+            }
+        }
+    }
+
+    boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    void put(long key, T value) {
+        if ((_size + 1) * 2 > _values.length) {
+            grow();
+        }
+
+        int i = slot(key);
+        while (_values[i] != null && _keys[i] != key) {
+            i = (i + 1) & _mask;
+        }
+        if (_values[i] == null) {
+            _size++;
+        }
+        _keys[i] = key;
+        _values[i] = value;
+    }
+
+    @SuppressWarnings("unchecked")
+    T remove(long key) {
+        int i = slot(key);
+        while (_values[i] != null && _keys[i] != key) {
+            i = (i + 1) & _mask;
+        }
+
+        Object removed = _values[i];
+        if (removed == null) {
+            return null;
+        }
+        _values[i] = null;
+        _size--;
+
+        // shift back the entries that probed past the freed slot
+        for (int j = (i + 1) & _mask; _values[j] != null; j = (j + 1) & _mask) {
+            int k = slot(_keys[j]);
+            boolean inPlace = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+            if (!inPlace) {
+                _keys[i] = _keys[j];
+                _values[i] = _values[j];
+                _values[j] = null;
+                i = j;
+            }
+        }
+
+        return (T) removed;
+    }
+
+    void clear() {
+        for (int i = 0; i < _values.length; i++) {
+            _values[i] = null;
+        }
+        _size = 0;
+    }
+
+    int size() {
+        return _size;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & _mask;
+    }
+
+    private void allocate(int capacity) {
+        _keys = new long[capacity];
+        _values = new Object[capacity];
+        _mask = capacity - 1;
+    }
+
+    private void grow() {
+        long[] keys = _keys;
+        Object[] values = _values;
+        allocate(values.length * 2);
+        _size = 0;
+
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                int j = slot(keys[i]);
+                while (_values[j] != null) {
+                    j = (j + 1) & _mask;
+                }
+                _keys[j] = keys[i];
+                _values[j] = values[i];
+                _size++;
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.instacart.library.truetime;
+
+/**
+ * Order statistics of primitive arrays in place, without sorting them: Hoare's selection, O(n) on
+ * average and allocation free.
+ *
+ * After {@link #select(long[], int, int)} the k-th smallest value is at index k, smaller or equal
+ * values before it and greater or equal values after it.
+ */
+final class QuickSelect {
+
+    private QuickSelect() {
+    }
+
+    /**
+     * @param count values considered, from index 0
+     * @param k     0 for the smallest value
+     * @return the k-th smallest of the first count values, which are reordered
+     */
+    static long select(long[] values, int count, int k) {
+        int left = 0;
+        int right = count - 1;
+        while (left < right) {
+            // median of three, so already sorted input isn't the worst case
+            int middle = (left + right) >>> 1;
+            if (values[middle] < values[left]) {
+                swap(values, left, middle);
+            }
+            if (values[right] < values[left]) {
+                swap(values, left, right);
+            }
+            if (values[right] < values[middle]) {
+                swap(values, middle, right);
+            }
+            long pivot = values[middle];
+
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (values[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(values, i++, j--);
+                }
+            }
+
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                break;
+            }
+        }
+        return values[k];
+    }
+
+    /**
+     * @see #select(long[], int, int)
+     */
+    static double select(double[] values, int count, int k) {
+        int left = 0;
+        int right = count - 1;
+        while (left < right) {
+            int middle = (left + right) >>> 1;
+            if (values[middle] < values[left]) {
+                swap(values, left, middle);
+            }
+            if (values[right] < values[left]) {
+                swap(values, left, right);
+            }
+            if (values[right] < values[middle]) {
+                swap(values, middle, right);
+            }
+            double pivot = values[middle];
+
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (values[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(values, i++, j--);
+                }
+            }
+
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                break;
+            }
+        }
+        return values[k];
+    }
+
+    private static void swap(long[] values, int i, int j) {
+        long value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+    private static void swap(double[] values, int i, int j) {
+        double value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+}
@@ -0,0 +1,20 @@
+package com.instacart.library.truetime;
+
+import java.io.IOException;
+
+/**
+ * Decides whether and when a failed SNTP request is retried.
+ * Used by {@link TrueTime#initialize()} and TrueTimeRx, see {@link TrueTimeClock#withRetryPolicy(RetryPolicy)}
+ */
+public interface RetryPolicy {
+
+    /** returned by {@link #retryDelayMillis(int, IOException)} to stop retrying */
+    long STOP = -1L;
+
+    /**
+     * @param retryCount retries done so far, 0 for the first failure
+     * @param failure    why the last request failed
+     * @return how long to wait before retrying, or {@link #STOP} to give up and propagate failure
+     */
+    long retryDelayMillis(int retryCount, IOException failure);
+}
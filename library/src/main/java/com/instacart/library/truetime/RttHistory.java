@@ -0,0 +1,121 @@
+package com.instacart.library.truetime;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recently observed round trip times per server, used to decide when a request has been
+ * outstanding for unusually long (see hedging in {@link SntpNioEngine}) and to size each request's
+ * timeout from a smoothed estimate as TCP does (RFC 6298).
+ */
+final class RttHistory {
+
+    /** samples kept per server */
+    private static final int SIZE = 16;
+
+    /** below this many samples the history isn't trusted and the default is used */
+    private static final int MIN_SAMPLES = 3;
+
+    /** timeout until a server has answered once, as in RFC 6298 */
+    private static final long INITIAL_RTO_NANOS = 1_000_000_000L;
+
+    /** lower bound of the variance term, a scheduling tick */
+    private static final long CLOCK_GRANULARITY_NANOS = 10_000_000L;
+
+    /** at most 2^MAX_BACKOFF times the estimate after consecutive timeouts */
+    private static final int MAX_BACKOFF = 6;
+
+    private final ConcurrentHashMap<InetAddress, Samples> _samples = new ConcurrentHashMap<>();
+
+    /**
+     * @param rttNanos round trip delay of a response, see {@link SntpClient#getRoundTripDelayNanos(long[])}
+     */
+    void record(InetAddress address, long rttNanos) {
+        samples(address).add(Math.max(0L, rttNanos));
+    }
+
+    /**
+     * A request to address timed out: back the timeout off until it answers again
+     */
+    void backoff(InetAddress address) {
+        samples(address).backoff();
+    }
+
+    /**
+     * Retransmission timeout: smoothed round trip time plus four deviations, doubled for every
+     * consecutive timeout.
+     *
+     * @return timeout for the next request to address, clamped to [minMillis, maxMillis]
+     */
+    long timeoutMillis(InetAddress address, long minMillis, long maxMillis) {
+        Samples samples = _samples.get(address);
+        long rtoNanos = samples == null ? INITIAL_RTO_NANOS : samples.rtoNanos();
+        return Math.max(minMillis, Math.min(maxMillis, rtoNanos / 1_000_000L));
+    }
+
+    /**
+     * @param percentile between 0 and 1
+     * @param defaultNanos returned while there aren't enough samples for the server
+     * @return the given percentile of the round trip times recently observed for address
+     */
+    long percentileNanos(InetAddress address, double percentile, long defaultNanos) {
+        Samples samples = _samples.get(address);
+        return samples == null ? defaultNanos : samples.percentile(percentile, defaultNanos);
+    }
+
+    private Samples samples(InetAddress address) {
+        Samples samples = _samples.get(address);
+        if (samples == null) {
+            _samples.putIfAbsent(address, new Samples());
+            samples = _samples.get(address);
+        }
+        return samples;
+    }
+
+    private static final class Samples {
+
+        // guarded by this
+        private final long[] _rtts = new long[SIZE];
+        private final long[] _scratch = new long[SIZE];
+        private int _count = 0;
+        private int _next = 0;
+        private long _srttNanos = 0L;
+        private long _rttvarNanos = 0L;
+        private int _backoff = 0;
+
+        synchronized void add(long rttNanos) {
+            if (_count == 0) {
+                _srttNanos = rttNanos;
+                _rttvarNanos = rttNanos / 2;
+            } else {
+                _rttvarNanos = (3 * _rttvarNanos + Math.abs(_srttNanos - rttNanos)) / 4;
+                _srttNanos = (7 * _srttNanos + rttNanos) / 8;
+            }
+            _backoff = 0;
+
+            _rtts[_next] = rttNanos;
+            _next = (_next + 1) % SIZE;
+            _count = Math.min(_count + 1, SIZE);
+        }
+
+        synchronized void backoff() {
+            _backoff = Math.min(_backoff + 1, MAX_BACKOFF);
+        }
+
+        synchronized long rtoNanos() {
+            long rto = _count == 0
+                       ? INITIAL_RTO_NANOS
+                       : _srttNanos + Math.max(CLOCK_GRANULARITY_NANOS, 4 * _rttvarNanos);
+            return rto << _backoff;
+        }
+
+        synchronized long percentile(double percentile, long defaultNanos) {
+            if (_count < MIN_SAMPLES) {
+                return defaultNanos;
+            }
+            System.arraycopy(_rtts, 0, _scratch, 0, _count);
+            int index = (int) Math.ceil(percentile * _count) - 1;
+            return QuickSelect.select(_scratch, _count, Math.max(0, Math.min(_count - 1, index)));
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.instacart.library.truetime;
+
+import java.util.Arrays;
+
+/**
+ * The candidates of a {@link ClockSelection}, the best sample of every server, as primitive columns.
+ *
+ * A sample's offset and correctness interval are read from its response once, when it's put in, and
+ * the columns are sized for every server of the sync up front: putting samples in and selecting
+ * again as they land doesn't allocate.
+ *
+ * The intersection walks the offsets, low and high bounds in order. Rather than sorting them again
+ * for every selection, they're kept sorted as samples are put in: a sync selects after every sample
+ * that lands (see {@link ClockSelection#intersect(SampleBuffer, long[])}), and a new sample only
+ * moves its own three values, a binary search and an array shift per column.
+ */
+final class SampleBuffer {
+
+    private final int[] _rowOfServer;
+    private final long[][] _responses;
+    private final long[] _offsets;
+    private final long[] _lows;
+    private final long[] _highs;
+    private int _size = 0;
+
+    // the same values as the columns, each sorted on its own
+    private final long[] _sortedOffsets;
+    private final long[] _sortedLows;
+    private final long[] _sortedHighs;
+
+    /**
+     * @param serverCount servers of the sync, indexed from 0
+     */
+    SampleBuffer(int serverCount) {
+        _rowOfServer = new int[serverCount];
+        Arrays.fill(_rowOfServer, -1);
+        _responses = new long[serverCount][SntpClient.RESPONSE_INDEX_SIZE];
+        _offsets = new long[serverCount];
+        _lows = new long[serverCount];
+        _highs = new long[serverCount];
+        _sortedOffsets = new long[serverCount];
+        _sortedLows = new long[serverCount];
+        _sortedHighs = new long[serverCount];
+    }
+
+    /**
+     * Sets the candidate of server, replacing its previous one. response is copied, the caller
+     * keeps owning it
+     *
+     * @param response see RESPONSE_INDEX_ in {@link SntpClient}
+     */
+    void put(int server, long[] response) {
+        int row = _rowOfServer[server];
+        if (row < 0) {
+            row = _size;
+            _rowOfServer[server] = row;
+        } else {
+            remove(_sortedOffsets, _size, _offsets[row]);
+            remove(_sortedLows, _size, _lows[row]);
+            remove(_sortedHighs, _size, _highs[row]);
+            _size--;
+        }
+
+        System.arraycopy(response, 0, _responses[row], 0, SntpClient.RESPONSE_INDEX_SIZE);
+        _offsets[row] = SntpClient.getClockOffsetNanos(response);
+        _lows[row] = SntpClient.getClockOffsetLowNanos(response);
+        _highs[row] = SntpClient.getClockOffsetHighNanos(response);
+
+        insert(_sortedOffsets, _size, _offsets[row]);
+        insert(_sortedLows, _size, _lows[row]);
+        insert(_sortedHighs, _size, _highs[row]);
+        _size++;
+    }
+
+    /**
+     * @return number of servers with a candidate
+     */
+    int size() {
+        return _size;
+    }
+
+    long[] response(int row) {
+        return _responses[row];
+    }
+
+    long offset(int row) {
+        return _offsets[row];
+    }
+
+    long low(int row) {
+        return _lows[row];
+    }
+
+    long high(int row) {
+        return _highs[row];
+    }
+
+    /**
+     * @return the i-th smallest offset, the rows aren't in this order
+     */
+    long sortedOffset(int i) {
+        return _sortedOffsets[i];
+    }
+
+    long sortedLow(int i) {
+        return _sortedLows[i];
+    }
+
+    long sortedHigh(int i) {
+        return _sortedHighs[i];
+    }
+
+    /**
+     * Inserts value into the first count values of sorted, keeping them sorted
+     */
+    private static void insert(long[] sorted, int count, long value) {
+        int i = Arrays.binarySearch(sorted, 0, count, value);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        System.arraycopy(sorted, i, sorted, i + 1, count - i);
+        sorted[i] = value;
+    }
+
+    /**
+     * Removes one occurrence of value, which must be there, from the first count values of sorted
+     */
+    private static void remove(long[] sorted, int count, long value) {
+        int i = Arrays.binarySearch(sorted, 0, count, value);
+        System.arraycopy(sorted, i + 1, sorted, i, count - i - 1);
+    }
+}
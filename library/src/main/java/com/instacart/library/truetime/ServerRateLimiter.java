@@ -0,0 +1,156 @@
+package com.instacart.library.truetime;
+
+import android.os.SystemClock;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Paces the requests sent to every server and remembers their Kiss-o'-Death responses, refusing to
+ * query them again until they allow it. Shared by every clock and engine in the process so that no
+ * combination of clocks, retries or hedges exceeds the rate a server asked for.
+ *
+ * Every packet sent to a server is counted, whatever sent it: up to {@link #BURST_PACKETS} in a row,
+ * like ntpd's iburst, then one per {@link #MIN_POLL_INTERVAL_IN_MILLIS} on average (a generic cell
+ * rate algorithm). A request beyond that isn't sent, it fails as if the server had sent RATE.
+ *
+ * - RATE (and unknown codes): the server isn't queried for a minimum poll interval, doubled on every
+ *   new kiss up to {@link #MAX_POLL_INTERVAL_IN_MILLIS} and reset once it answers normally again
+ * - DENY and RSTR: the server isn't queried again for {@link #DENIED_INTERVAL_IN_MILLIS}
+ */
+class ServerRateLimiter {
+
+    private static final String TAG = ServerRateLimiter.class.getSimpleName();
+
+    /** minimum poll interval of RFC 5905 (2^6 s) */
+    static final long MIN_POLL_INTERVAL_IN_MILLIS = 64_000L;
+
+    /** maximum poll interval of RFC 4330 (2^10 s) */
+    static final long MAX_POLL_INTERVAL_IN_MILLIS = 1_024_000L;
+
+    static final long DENIED_INTERVAL_IN_MILLIS = 24L * 60L * 60L * 1_000L;
+
+    /** packets a server can be sent back to back, as many as ntpd's iburst */
+    static final int BURST_PACKETS = 8;
+
+    private static final ServerRateLimiter SHARED = new ServerRateLimiter();
+
+    private final ConcurrentHashMap<InetAddress, Kiss> _kisses = new ConcurrentHashMap<>();
+
+    // theoretical arrival time of the next packet to every server, in elapsedRealtime() millis
+    private final ConcurrentHashMap<InetAddress, AtomicLong> _nextSendTimes = new ConcurrentHashMap<>();
+
+    static ServerRateLimiter shared() {
+        return SHARED;
+    }
+
+    /**
+     * Call before sending a request to address
+     *
+     * @throws KissOfDeathException if the server asked not to be queried at this time, or was
+     *                              already sent as many requests as the poll interval allows
+     */
+    void acquire(InetAddress address) throws KissOfDeathException {
+        acquire(address, 1);
+    }
+
+    /**
+     * Call before sending packets requests to address at once, e.g. a burst. Either all of them
+     * can be sent or none
+     *
+     * @see #acquire(InetAddress)
+     */
+    void acquire(InetAddress address, int packets) throws KissOfDeathException {
+        long now = elapsedRealtime();
+
+        Kiss kiss = _kisses.get(address);
+        if (kiss != null) {
+            long remaining = kiss.blockedUntil - now;
+            if (remaining > 0L) {
+                throw new KissOfDeathException("NTP server " + address.getHostAddress() + " sent " + kiss.kissCode +
+                                               ", not querying it for another " + remaining + "ms",
+                                               kiss.kissCode);
+            }
+        }
+
+        AtomicLong nextSendTime = _nextSendTimes.get(address);
+        if (nextSendTime == null) {
+            _nextSendTimes.putIfAbsent(address, new AtomicLong(Long.MIN_VALUE));
+            nextSendTime = _nextSendTimes.get(address);
+        }
+
+        long tolerance = (BURST_PACKETS - 1) * MIN_POLL_INTERVAL_IN_MILLIS;
+        while (true) {
+            long previous = nextSendTime.get();
+            long scheduled = Math.max(previous, now);
+            // the last of the packets must be within the tolerance
+            long remaining = scheduled + (packets - 1) * MIN_POLL_INTERVAL_IN_MILLIS - tolerance - now;
+            if (remaining > 0L) {
+                throw new KissOfDeathException("NTP server " + address.getHostAddress() +
+                                               " was queried at its maximum rate, not querying it for another " +
+                                               remaining + "ms",
+                                               KissOfDeathException.KISS_CODE_RATE);
+            }
+            if (nextSendTime.compareAndSet(previous, scheduled + packets * MIN_POLL_INTERVAL_IN_MILLIS)) {
+                return;
+            }
+        }
+    }
+
+    void onKissOfDeath(InetAddress address, KissOfDeathException e) {
+        long now = elapsedRealtime();
+
+        while (true) {
+            Kiss previous = _kisses.get(address);
+
+            long interval;
+            if (e.isAccessDenied()) {
+                interval = DENIED_INTERVAL_IN_MILLIS;
+            } else if (previous == null || previous.interval >= DENIED_INTERVAL_IN_MILLIS) {
+                interval = MIN_POLL_INTERVAL_IN_MILLIS;
+            } else {
+                interval = Math.min(MAX_POLL_INTERVAL_IN_MILLIS, previous.interval * 2);
+            }
+
+            Kiss kiss = new Kiss(e.kissCode, interval, now + interval);
+            boolean replaced = previous == null
+                               ? _kisses.putIfAbsent(address, kiss) == null
+                               : _kisses.replace(address, previous, kiss);
+            if (replaced) {
+                TrueLog.w(TAG, "---- " + e.kissCode + " from " + address.getHostAddress() +
+                               ", backing off for " + interval + "ms");
+                return;
+            }
+        }
+    }
+
+    /**
+     * The server answered normally: its next kiss starts again from the minimum poll interval
+     */
+    void onResponse(InetAddress address) {
+        Kiss kiss = _kisses.get(address);
+        if (kiss != null && kiss.blockedUntil <= elapsedRealtime()) {
+            _kisses.remove(address, kiss);
+        }
+    }
+
+    /**
+     * Clock the intervals are measured with, overridden by tests
+     */
+    long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private static final class Kiss {
+
+        final String kissCode;
+        final long interval;
+        final long blockedUntil;
+
+        Kiss(String kissCode, long interval, long blockedUntil) {
+            this.kissCode = kissCode;
+            this.interval = interval;
+            this.blockedUntil = blockedUntil;
+        }
+    }
+}
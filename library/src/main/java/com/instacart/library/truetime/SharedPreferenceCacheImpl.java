@@ -12,7 +12,15 @@ class SharedPreferenceCacheImpl implements CacheInterface {
     private SharedPreferences _sharedPreferences;
 
     public SharedPreferenceCacheImpl(Context context) {
-        _sharedPreferences = context.getSharedPreferences(KEY_CACHED_SHARED_PREFS, MODE_PRIVATE);
+        this(context, null);
+    }
+
+    /**
+     * @param namespace each namespace gets its own preferences file. null is the default TrueTime file
+     */
+    public SharedPreferenceCacheImpl(Context context, String namespace) {
+        String name = namespace == null ? KEY_CACHED_SHARED_PREFS : KEY_CACHED_SHARED_PREFS + "." + namespace;
+        _sharedPreferences = context.getSharedPreferences(name, MODE_PRIVATE);
     }
 
     @Override
@@ -30,6 +38,16 @@ class SharedPreferenceCacheImpl implements CacheInterface {
         remove(CacheInterface.KEY_CACHED_BOOT_TIME);
         remove(CacheInterface.KEY_CACHED_DEVICE_UPTIME);
         remove(CacheInterface.KEY_CACHED_SNTP_TIME);
+        remove(CacheInterface.KEY_CACHED_DEVICE_UPTIME_NANOS);
+        remove(CacheInterface.KEY_CACHED_SNTP_TIME_NANOS);
+        remove(CacheInterface.KEY_CACHED_ROOT_DISTANCE_NANOS);
+        remove(CacheInterface.KEY_CACHED_SLEW_START_UPTIME_NANOS);
+        remove(CacheInterface.KEY_CACHED_SLEW_WINDOW_NANOS);
+        remove(CacheInterface.KEY_CACHED_SLEW_CORRECTION_NANOS);
+        // the persisted addresses are unreachable without their count
+        remove(CacheInterface.KEY_CACHED_NTP_HOST_HASH);
+        remove(CacheInterface.KEY_CACHED_NTP_ADDRESS_COUNT);
+        // KEY_CACHED_CLOCK_DRIFT_PPB is kept: it's a property of the device and survives reboots
     }
 
     private void remove(String keyCachedBootTime) {
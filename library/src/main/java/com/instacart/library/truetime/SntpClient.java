@@ -22,8 +22,9 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Simple SNTP client class for retrieving network time.
@@ -38,18 +39,38 @@ public class SntpClient {
     public static final int RESPONSE_INDEX_DISPERSION = 5;
     public static final int RESPONSE_INDEX_STRATUM = 6;
     public static final int RESPONSE_INDEX_RESPONSE_TICKS = 7;
-    public static final int RESPONSE_INDEX_SIZE = 8;
+    public static final int RESPONSE_INDEX_RESPONSE_TICKS_NANOS = 8;
+    public static final int RESPONSE_INDEX_RESPONSE_TIME_NANOS = 9;
+    public static final int RESPONSE_INDEX_CLOCK_OFFSET_NANOS = 10;
+    public static final int RESPONSE_INDEX_ROUND_TRIP_DELAY_NANOS = 11;
+    public static final int RESPONSE_INDEX_OFFSET_LOW_NANOS = 12;
+    public static final int RESPONSE_INDEX_OFFSET_HIGH_NANOS = 13;
+    public static final int RESPONSE_INDEX_SERVER_ID = 14;
+    public static final int RESPONSE_INDEX_SIZE = 15;
 
     private static final String TAG = SntpClient.class.getSimpleName();
 
-    private static final int NTP_PORT = 123;
+    /** MINDISP of RFC 5905, minimum total delay counted in the root distance */
+    private static final long MIN_DISPERSION_NANOS = 10_000_000L;
+
+    static final int NTP_PORT = 123;
     private static final int NTP_MODE = 3;
     private static final int NTP_VERSION = 3;
-    private static final int NTP_PACKET_SIZE = 48;
+    static final int NTP_PACKET_SIZE = 48;
+
+    /**
+     * Low order bits of the transmit timestamp that carry a random nonce, so a response can be
+     * matched to its request even when several are sent within the same millisecond.
+     * 2^22 / 2^32 s is just under a millisecond, below the resolution of the request time.
+     */
+    static final int NONCE_BITS = 22;
+    private static final int NONCE_MASK = (1 << NONCE_BITS) - 1;
+    private static final Random NONCES = new Random();
 
     private static final int INDEX_VERSION = 0;
     private static final int INDEX_ROOT_DELAY = 4;
     private static final int INDEX_ROOT_DISPERSION = 8;
+    private static final int INDEX_REFERENCE_ID = 12;
     private static final int INDEX_ORIGINATE_TIME = 24;
     private static final int INDEX_RECEIVE_TIME = 32;
     private static final int INDEX_TRANSMIT_TIME = 40;
@@ -57,17 +78,14 @@ public class SntpClient {
     // 70 years plus 17 leap days
     private static final long OFFSET_1900_TO_1970 = ((365L * 70L) + 17L) * 24L * 60L * 60L;
 
-    private AtomicLong _cachedDeviceUptime = new AtomicLong();
-    private AtomicLong _cachedSntpTime = new AtomicLong();
-    private AtomicBoolean _sntpInitialized = new AtomicBoolean(false);
+    private final AtomicReference<TrueTimeSnapshot> _cachedSnapshot = new AtomicReference<>();
 
     /**
      * See δ :
      * https://en.wikipedia.org/wiki/Network_Time_Protocol#Clock_synchronization_algorithm
      */
     public static long getRoundTripDelay(long[] response) {
-        return (response[RESPONSE_INDEX_RESPONSE_TIME] - response[RESPONSE_INDEX_ORIGINATE_TIME]) -
-               (response[RESPONSE_INDEX_TRANSMIT_TIME] - response[RESPONSE_INDEX_RECEIVE_TIME]);
+        return getRoundTripDelayNanos(response) / 1_000_000L;
     }
 
     /**
@@ -75,170 +93,727 @@ public class SntpClient {
      * https://en.wikipedia.org/wiki/Network_Time_Protocol#Clock_synchronization_algorithm
      */
     public static long getClockOffset(long[] response) {
-        return ((response[RESPONSE_INDEX_RECEIVE_TIME] - response[RESPONSE_INDEX_ORIGINATE_TIME]) +
-                (response[RESPONSE_INDEX_TRANSMIT_TIME] - response[RESPONSE_INDEX_RESPONSE_TIME])) / 2;
+        return getClockOffsetNanos(response) / 1_000_000L;
+    }
+
+    /**
+     * Full precision version of {@link #getRoundTripDelay(long[])}, to compare and select responses:
+     * sub-millisecond round trips are common on nearby servers
+     */
+    public static long getRoundTripDelayNanos(long[] response) {
+        return response[RESPONSE_INDEX_ROUND_TRIP_DELAY_NANOS];
+    }
+
+    /**
+     * Full precision version of {@link #getClockOffset(long[])}
+     */
+    public static long getClockOffsetNanos(long[] response) {
+        return response[RESPONSE_INDEX_CLOCK_OFFSET_NANOS];
+    }
+
+    /**
+     * Synchronization distance (λ) of the response: half the total round trip delay to the primary
+     * reference plus the server's root dispersion. The true time at the moment of the response lies
+     * within ± this value of the computed time.
+     *
+     * See RFC 5905 section 11.2.2 "root distance". As there, the total delay counts for at least
+     * MINDISP so timestamp precision is covered even on very short round trips.
+     */
+    public static long getRootDistanceNanos(long[] response) {
+        long rootDelayNanos = ntpShortToNanos(response[RESPONSE_INDEX_ROOT_DELAY]);
+        long rootDispersionNanos = ntpShortToNanos(response[RESPONSE_INDEX_DISPERSION]);
+        long roundTripDelayNanos = Math.abs(response[RESPONSE_INDEX_ROUND_TRIP_DELAY_NANOS]);
+        return Math.max(MIN_DISPERSION_NANOS, rootDelayNanos + roundTripDelayNanos) / 2 + rootDispersionNanos;
+    }
+
+    /**
+     * Lower bound of the interval the true clock offset lies within: the offset minus the root
+     * distance for a single response, the intersection of the truechimers' intervals for a response
+     * selected out of several servers (see {@link ClockSelection})
+     */
+    public static long getClockOffsetLowNanos(long[] response) {
+        return response[RESPONSE_INDEX_OFFSET_LOW_NANOS];
+    }
+
+    /**
+     * Upper bound of the interval the true clock offset lies within
+     *
+     * @see #getClockOffsetLowNanos(long[])
+     */
+    public static long getClockOffsetHighNanos(long[] response) {
+        return response[RESPONSE_INDEX_OFFSET_HIGH_NANOS];
+    }
+
+    /**
+     * @return id of the server that actually sent the response, see {@link #serverId(InetAddress)}
+     */
+    public static long getServerId(long[] response) {
+        return response[RESPONSE_INDEX_SERVER_ID];
+    }
+
+    /**
+     * Identifies a server in RESPONSE_INDEX_SERVER_ID, so a response can be matched to the server it
+     * was requested from: an IPv4 address itself, a 64 bit FNV-1a hash of the bytes of an IPv6 one
+     */
+    static long serverId(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (bytes.length == 4) {
+            return read(bytes, 0);
+        }
+
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
     }
 
     /**
-     * Sends an NTP request to the given host and processes the response.
+     * Sends an NTP request to an already resolved server (see {@link DnsCache}) and processes the response.
      *
-     * @param ntpHost           host name of the server.
+     * Re-entrant: every call uses its own socket, buffer and response array, so requests to
+     * several servers can be in flight at the same time. Nothing is published here, callers
+     * publish the response they select with {@link #cacheTrueTimeInfo(TrueTimeSnapshot, TrueTimeSnapshot, long)}
+     * which is atomic.
+     *
+     * @param token closes the socket when the sync is cancelled, may be null
      */
-    synchronized long[] requestTime(String ntpHost,
+    long[] requestTime(InetAddress address,
         float rootDelayMax,
         float rootDispersionMax,
         int serverResponseDelayMax,
-        int timeoutInMillis
+        int timeoutInMillis,
+        SyncToken token
     )
         throws IOException {
 
+        return requestTime(address,
+                           NTP_PORT,
+                           rootDelayMax,
+                           rootDispersionMax,
+                           serverResponseDelayMax,
+                           timeoutInMillis,
+                           token);
+    }
+
+    /**
+     * Same as {@link #requestTime(InetAddress, float, float, int, int, SyncToken)} on another port,
+     * e.g. of a local test server
+     */
+    long[] requestTime(InetAddress address,
+        int port,
+        float rootDelayMax,
+        float rootDispersionMax,
+        int serverResponseDelayMax,
+        int timeoutInMillis,
+        SyncToken token
+    )
+        throws IOException {
+
+        ServerRateLimiter.shared().acquire(address);
         DatagramSocket socket = null;
 
         try {
 
             byte[] buffer = new byte[NTP_PACKET_SIZE];
-            InetAddress address = InetAddress.getByName(ntpHost);
 
-            DatagramPacket request = new DatagramPacket(buffer, buffer.length, address, NTP_PORT);
-
-            writeVersion(buffer);
+            DatagramPacket request = new DatagramPacket(buffer, buffer.length, address, port);
+            long deadlineNanos = System.nanoTime() + timeoutInMillis * 1_000_000L;
 
             // -----------------------------------------------------------------------------------
             // get current time and write it to the request packet
 
             long requestTime = System.currentTimeMillis();
             long requestTicks = SystemClock.elapsedRealtime();
+            long requestTicksNanos = SystemClockCompat.elapsedRealtimeNanos();
 
-            writeTimeStamp(buffer, INDEX_TRANSMIT_TIME, requestTime);
+            writeRequest(buffer, requestTime);
+            long requestKey = requestKey(buffer);
 
             socket = new DatagramSocket();
-            socket.setSoTimeout(timeoutInMillis);
+            if (token != null) {
+                token.register(socket);
+            }
+            // only accept datagrams from the server
+            socket.connect(address, port);
             socket.send(request);
 
             // -----------------------------------------------------------------------------------
             // read the response
 
-            long t[] = new long[RESPONSE_INDEX_SIZE];
             DatagramPacket response = new DatagramPacket(buffer, buffer.length);
-            socket.receive(response);
+            receiveResponse(socket, response, requestKey, deadlineNanos);
 
+            long responseTicksNanos = SystemClockCompat.elapsedRealtimeNanos();
             long responseTicks = SystemClock.elapsedRealtime();
-            t[RESPONSE_INDEX_RESPONSE_TICKS] = responseTicks;
 
-            // -----------------------------------------------------------------------------------
-            // extract the results
-            // See here for the algorithm used:
-            // https://en.wikipedia.org/wiki/Network_Time_Protocol#Clock_synchronization_algorithm
+            long[] t = parseResponse(buffer,
+                                     requestTime,
+                                     requestTicks,
+                                     requestTicksNanos,
+                                     responseTicks,
+                                     responseTicksNanos,
+                                     rootDelayMax,
+                                     rootDispersionMax,
+                                     serverResponseDelayMax);
+            // the socket is connected: only address can have answered
+            t[RESPONSE_INDEX_SERVER_ID] = serverId(address);
+
+            TrueLog.i(TAG, "---- SNTP successful response from " + address.getHostAddress());
+            ServerRateLimiter.shared().onResponse(address);
+            return t;
+
+        } catch (KissOfDeathException e) {
+            ServerRateLimiter.shared().onKissOfDeath(address, e);
+            throw e;
+        } catch (Exception e) {
+            TrueLog.d(TAG, "---- SNTP request failed for " + address.getHostAddress());
+            throw e;
+        } finally {
+            if (socket != null) {
+                if (token != null) {
+                    token.unregister(socket);
+                }
+                socket.close();
+            }
+        }
+    }
 
-            long originateTime = readTimeStamp(buffer, INDEX_ORIGINATE_TIME);     // T0
-            long receiveTime = readTimeStamp(buffer, INDEX_RECEIVE_TIME);         // T1
-            long transmitTime = readTimeStamp(buffer, INDEX_TRANSMIT_TIME);       // T2
-            long responseTime = requestTime + (responseTicks - requestTicks);       // T3
+    /**
+     * Same as {@link #requestTime(InetAddress, float, float, int, int, SyncToken)} but on a socket and buffers
+     * borrowed from pool, and writing the results into t. Once the pool is warm, the whole
+     * send/receive/parse cycle doesn't allocate.
+     *
+     * @param t array of {@link #RESPONSE_INDEX_SIZE} the results are written to
+     * @return t
+     */
+    long[] requestTime(SntpSocketPool pool,
+        InetAddress address,
+        float rootDelayMax,
+        float rootDispersionMax,
+        int serverResponseDelayMax,
+        int timeoutInMillis,
+        SyncToken token,
+        long[] t
+    )
+        throws IOException {
 
-            t[RESPONSE_INDEX_ORIGINATE_TIME] = originateTime;
-            t[RESPONSE_INDEX_RECEIVE_TIME] = receiveTime;
-            t[RESPONSE_INDEX_TRANSMIT_TIME] = transmitTime;
-            t[RESPONSE_INDEX_RESPONSE_TIME] = responseTime;
+        ServerRateLimiter.shared().acquire(address);
+        SntpSocketPool.PooledSocket socket = pool.acquire(address);
+        boolean reusable = false;
 
-            // -----------------------------------------------------------------------------------
-            // check validity of response
-
-            t[RESPONSE_INDEX_ROOT_DELAY] = read(buffer, INDEX_ROOT_DELAY);
-            double rootDelay = doubleMillis(t[RESPONSE_INDEX_ROOT_DELAY]);
-            if (rootDelay > rootDelayMax) {
-                throw new InvalidNtpServerResponseException(
-                    "Invalid response from NTP server. %s violation. %f [actual] > %f [expected]",
-                    "root_delay",
-                    (float) rootDelay,
-                    rootDelayMax);
+        try {
+            if (token != null) {
+                token.register(socket.socket());
             }
 
-            t[RESPONSE_INDEX_DISPERSION] = read(buffer, INDEX_ROOT_DISPERSION);
-            double rootDispersion = doubleMillis(t[RESPONSE_INDEX_DISPERSION]);
-            if (rootDispersion > rootDispersionMax) {
-                throw new InvalidNtpServerResponseException(
-                    "Invalid response from NTP server. %s violation. %f [actual] > %f [expected]",
-                    "root_dispersion",
-                    (float) rootDispersion,
-                    rootDispersionMax);
-            }
+            long requestTime = System.currentTimeMillis();
+            long requestTicks = SystemClock.elapsedRealtime();
+            long requestTicksNanos = SystemClockCompat.elapsedRealtimeNanos();
 
-            final byte mode = (byte) (buffer[0] & 0x7);
-            if (mode != 4 && mode != 5) {
-                throw new InvalidNtpServerResponseException("untrusted mode value for TrueTime: " + mode);
-            }
+            socket.send(requestTime, timeoutInMillis);
+            socket.receive();
 
-            final int stratum = buffer[1] & 0xff;
-            t[RESPONSE_INDEX_STRATUM] = stratum;
-            if (stratum < 1 || stratum > 15) {
-                throw new InvalidNtpServerResponseException("untrusted stratum value for TrueTime: " + stratum);
-            }
+            long responseTicksNanos = SystemClockCompat.elapsedRealtimeNanos();
+            long responseTicks = SystemClock.elapsedRealtime();
+            reusable = true;
+
+            parseResponse(socket.response,
+                          requestTime,
+                          requestTicks,
+                          requestTicksNanos,
+                          responseTicks,
+                          responseTicksNanos,
+                          rootDelayMax,
+                          rootDispersionMax,
+                          serverResponseDelayMax,
+                          t);
+            t[RESPONSE_INDEX_SERVER_ID] = serverId(address);
+            ServerRateLimiter.shared().onResponse(address);
+            return t;
 
-            final byte leap = (byte) ((buffer[0] >> 6) & 0x3);
-            if (leap == 3) {
-                throw new InvalidNtpServerResponseException("unsynchronized server responded for TrueTime");
+        } catch (KissOfDeathException e) {
+            ServerRateLimiter.shared().onKissOfDeath(address, e);
+            throw e;
+        } catch (IOException e) {
+            TrueLog.d(TAG, "---- SNTP request failed for " + address.getHostAddress());
+            throw e;
+        } finally {
+            if (token != null) {
+                token.unregister(socket.socket());
+                // cancelling may have closed it
+                reusable &= !token.isCancelled();
             }
-
-            double delay = Math.abs((responseTime - originateTime) - (transmitTime - receiveTime));
-            if (delay >= serverResponseDelayMax) {
-                throw new InvalidNtpServerResponseException(
-                    "%s too large for comfort %f [actual] >= %f [expected]",
-                    "server_response_delay",
-                    (float) delay,
-                    serverResponseDelayMax);
+            if (reusable) {
+                pool.release(address, socket);
+            } else {
+                // a late response to this request could still arrive on the socket
+                pool.discard(socket);
             }
+        }
+    }
 
-            long timeElapsedSinceRequest = Math.abs(originateTime - System.currentTimeMillis());
-            if (timeElapsedSinceRequest >= 10_000) {
-                throw new InvalidNtpServerResponseException("Request was sent more than 10 seconds back " +
-                                                            timeElapsedSinceRequest);
-            }
+    /**
+     * Burst mode, like ntpd's iburst: sends one request per sample to the server on a single socket,
+     * spacingInMillis apart, and returns the valid response with the lowest round trip delay, the one
+     * least affected by queuing.
+     *
+     * Responses are received while waiting to send the next request, so their arrival is timestamped
+     * as it happens. The whole burst takes about one round trip plus the spacing of the requests,
+     * instead of one round trip per sample.
+     *
+     * @param samples responses are parsed into these, one array of {@link #RESPONSE_INDEX_SIZE} per request
+     * @param token   closes the socket when the sync is cancelled, may be null
+     * @return the sample with the lowest round trip delay
+     */
+    long[] requestTimeBurst(InetAddress address,
+        long[][] samples,
+        int spacingInMillis,
+        float rootDelayMax,
+        float rootDispersionMax,
+        int serverResponseDelayMax,
+        int timeoutInMillis,
+        SyncToken token
+    )
+        throws IOException {
 
-            _sntpInitialized.set(true);
-            TrueLog.i(TAG, "---- SNTP successful response from " + ntpHost);
+        int count = samples.length;
+        ServerRateLimiter.shared().acquire(address, count);
 
-            // -----------------------------------------------------------------------------------
-            // TODO:
-            cacheTrueTimeInfo(t);
-            return t;
+        long[] requestTimes = new long[count];
+        long[] requestTicks = new long[count];
+        long[] requestTicksNanos = new long[count];
+        long[] keys = new long[count];
+        boolean[] answered = new boolean[count];
 
-        } catch (Exception e) {
-            TrueLog.d(TAG, "---- SNTP request failed for " + ntpHost);
+        byte[] request = new byte[NTP_PACKET_SIZE];
+        byte[] response = new byte[NTP_PACKET_SIZE];
+        DatagramPacket requestPacket = new DatagramPacket(request, request.length, address, NTP_PORT);
+        DatagramPacket responsePacket = new DatagramPacket(response, response.length);
+
+        DatagramSocket socket = null;
+        long[] best = null;
+        InvalidNtpServerResponseException invalidResponse = null;
+
+        try {
+            socket = new DatagramSocket();
+            if (token != null) {
+                token.register(socket);
+            }
+            socket.connect(address, NTP_PORT);
+
+            int sent = 0;
+            int received = 0;
+            long nextSendNanos = System.nanoTime();
+            long deadlineNanos = nextSendNanos + (spacingInMillis * (count - 1L) + timeoutInMillis) * 1_000_000L;
+
+            while (received < count) {
+                long now = System.nanoTime();
+                if (sent < count && now >= nextSendNanos) {
+                    requestTimes[sent] = System.currentTimeMillis();
+                    requestTicks[sent] = SystemClock.elapsedRealtime();
+                    requestTicksNanos[sent] = SystemClockCompat.elapsedRealtimeNanos();
+                    writeRequest(request, requestTimes[sent]);
+                    keys[sent] = requestKey(request);
+                    socket.send(requestPacket);
+
+                    sent++;
+                    nextSendNanos = now + spacingInMillis * 1_000_000L;
+                    continue;
+                }
+
+                if (sent == count && now >= deadlineNanos) {
+                    break;
+                }
+
+                long waitUntilNanos = sent < count ? nextSendNanos : deadlineNanos;
+                socket.setSoTimeout((int) Math.max(1L, (waitUntilNanos - now) / 1_000_000L));
+                responsePacket.setLength(response.length);
+                try {
+                    socket.receive(responsePacket);
+                } catch (SocketTimeoutException e) {
+                    // time to send the next request, or the burst is over
+                    continue;
+                }
+
+                long responseTicksNanos = SystemClockCompat.elapsedRealtimeNanos();
+                long responseTicks = SystemClock.elapsedRealtime();
+
+                int index = responsePacket.getLength() < NTP_PACKET_SIZE
+                            ? -1
+                            : indexOf(keys, sent, responseKey(response));
+                if (index < 0 || answered[index]) {
+                    // stale or duplicated datagram
+                    continue;
+                }
+                answered[index] = true;
+                received++;
+
+                try {
+                    parseResponse(response,
+                                  requestTimes[index],
+                                  requestTicks[index],
+                                  requestTicksNanos[index],
+                                  responseTicks,
+                                  responseTicksNanos,
+                                  rootDelayMax,
+                                  rootDispersionMax,
+                                  serverResponseDelayMax,
+                                  samples[index]);
+                } catch (KissOfDeathException e) {
+                    // stop bursting right away
+                    ServerRateLimiter.shared().onKissOfDeath(address, e);
+                    throw e;
+                } catch (InvalidNtpServerResponseException e) {
+                    invalidResponse = e;
+                    continue;
+                }
+                samples[index][RESPONSE_INDEX_SERVER_ID] = serverId(address);
+
+                if (best == null ||
+                    samples[index][RESPONSE_INDEX_ROUND_TRIP_DELAY_NANOS] < best[RESPONSE_INDEX_ROUND_TRIP_DELAY_NANOS]) {
+                    best = samples[index];
+                }
+            }
+
+        } catch (IOException e) {
+            TrueLog.d(TAG, "---- SNTP burst failed for " + address.getHostAddress());
             throw e;
         } finally {
             if (socket != null) {
+                if (token != null) {
+                    token.unregister(socket);
+                }
                 socket.close();
             }
         }
+
+        if (best != null) {
+            TrueLog.i(TAG, "---- SNTP successful burst from " + address.getHostAddress());
+            ServerRateLimiter.shared().onResponse(address);
+            return best;
+        }
+
+        TrueLog.d(TAG, "---- SNTP burst failed for " + address.getHostAddress());
+        if (invalidResponse != null) {
+            throw invalidResponse;
+        }
+        throw new SocketTimeoutException("SNTP burst to " + address.getHostAddress() + " timed out");
+    }
+
+    /**
+     * Writes an NTP client request into buffer
+     *
+     * @param requestTime system time the request is sent at, becomes the transmit timestamp (T0)
+     */
+    static void writeRequest(byte[] buffer, long requestTime) {
+        writeVersion(buffer);
+        writeTimeStamp(buffer, INDEX_TRANSMIT_TIME, requestTime, NONCES.nextInt());
+    }
+
+    /**
+     * Writes the part of a request that's the same for every request, so it can be precomputed
+     * once and only the transmit timestamp patched per send
+     * (see {@link #writeTransmitTimeStamp(byte[], long, int)})
+     */
+    static void writeRequestTemplate(byte[] buffer) {
+        writeVersion(buffer);
+    }
+
+    /**
+     * @param nonce random data, its low {@link #NONCE_BITS} bits are written to the timestamp
+     */
+    static void writeTransmitTimeStamp(byte[] request, long requestTime, int nonce) {
+        writeTimeStamp(request, INDEX_TRANSMIT_TIME, requestTime, nonce);
+    }
+
+    /**
+     * @param request buffer written by {@link #writeRequest(byte[], long)}
+     * @return raw 64 bit transmit timestamp of the request. A valid response echoes it back as
+     * its originate timestamp, see {@link #responseKey(byte[])}
+     */
+    static long requestKey(byte[] request) {
+        return readRaw64(request, INDEX_TRANSMIT_TIME);
+    }
+
+    /**
+     * @param response NTP response packet
+     * @return raw 64 bit originate timestamp of the response
+     */
+    static long responseKey(byte[] response) {
+        return readRaw64(response, INDEX_ORIGINATE_TIME);
+    }
+
+    /**
+     * Receives into packet the response to the request with the given key. Any other datagram
+     * (a late response to an earlier request, a duplicate, a truncated or spoofed packet) is dropped
+     * without being parsed.
+     *
+     * @throws SocketTimeoutException if no matching response arrived before deadlineNanos ({@link System#nanoTime()})
+     */
+    static void receiveResponse(DatagramSocket socket,
+        DatagramPacket packet,
+        long requestKey,
+        long deadlineNanos
+    )
+        throws IOException {
+
+        while (true) {
+            long remainingInMillis = (deadlineNanos - System.nanoTime()) / 1_000_000L;
+            if (remainingInMillis <= 0) {
+                throw new SocketTimeoutException("no response to the SNTP request");
+            }
+
+            socket.setSoTimeout((int) remainingInMillis);
+            packet.setLength(NTP_PACKET_SIZE);
+            socket.receive(packet);
+
+            if (packet.getLength() >= NTP_PACKET_SIZE && responseKey(packet.getData()) == requestKey) {
+                return;
+            }
+            TrueLog.d(TAG, "---- dropping unexpected datagram from " + packet.getSocketAddress());
+        }
+    }
+
+    /**
+     * Extracts the results from a response and checks their validity
+     *
+     * @param buffer            response packet
+     * @param requestTime       system time written to the request
+     * @param requestTicks      device uptime when the request was sent
+     * @param requestTicksNanos same in nanoseconds
+     * @param responseTicks     device uptime when the response was received
+     * @param responseTicksNanos same in nanoseconds
+     * @return long[] with the RESPONSE_INDEX_ values
+     */
+    static long[] parseResponse(byte[] buffer,
+        long requestTime,
+        long requestTicks,
+        long requestTicksNanos,
+        long responseTicks,
+        long responseTicksNanos,
+        float rootDelayMax,
+        float rootDispersionMax,
+        int serverResponseDelayMax
+    )
+        throws InvalidNtpServerResponseException {
+
+        return parseResponse(buffer,
+                             requestTime,
+                             requestTicks,
+                             requestTicksNanos,
+                             responseTicks,
+                             responseTicksNanos,
+                             rootDelayMax,
+                             rootDispersionMax,
+                             serverResponseDelayMax,
+                             new long[RESPONSE_INDEX_SIZE]);
+    }
+
+    /**
+     * Allocation free version of {@link #parseResponse(byte[], long, long, long, long, long, float, float, int)}
+     *
+     * @param t array of {@link #RESPONSE_INDEX_SIZE} the results are written to
+     * @return t
+     */
+    static long[] parseResponse(byte[] buffer,
+        long requestTime,
+        long requestTicks,
+        long requestTicksNanos,
+        long responseTicks,
+        long responseTicksNanos,
+        float rootDelayMax,
+        float rootDispersionMax,
+        int serverResponseDelayMax,
+        long[] t
+    )
+        throws InvalidNtpServerResponseException {
+
+        t[RESPONSE_INDEX_RESPONSE_TICKS] = responseTicks;
+        t[RESPONSE_INDEX_RESPONSE_TICKS_NANOS] = responseTicksNanos;
+
+        // -----------------------------------------------------------------------------------
+        // extract the results
+        // See here for the algorithm used:
+        // https://en.wikipedia.org/wiki/Network_Time_Protocol#Clock_synchronization_algorithm
+
+        long originateTime = readTimeStamp(buffer, INDEX_ORIGINATE_TIME);     // T0
+        long receiveTime = readTimeStamp(buffer, INDEX_RECEIVE_TIME);         // T1
+        long transmitTime = readTimeStamp(buffer, INDEX_TRANSMIT_TIME);       // T2
+        long responseTime = requestTime + (responseTicks - requestTicks);       // T3
+
+        t[RESPONSE_INDEX_ORIGINATE_TIME] = originateTime;
+        t[RESPONSE_INDEX_RECEIVE_TIME] = receiveTime;
+        t[RESPONSE_INDEX_TRANSMIT_TIME] = transmitTime;
+        t[RESPONSE_INDEX_RESPONSE_TIME] = responseTime;
+
+        // same computation at nanosecond resolution, so sub-millisecond precision of the
+        // server timestamps and our own ticks isn't thrown away
+        long originateTimeNanos = requestTime * 1_000_000L;                                      // T0
+        long receiveTimeNanos = readTimeStampNanos(buffer, INDEX_RECEIVE_TIME);                  // T1
+        long transmitTimeNanos = readTimeStampNanos(buffer, INDEX_TRANSMIT_TIME);                // T2
+        long responseTimeNanos = originateTimeNanos + (responseTicksNanos - requestTicksNanos);  // T3
+
+        t[RESPONSE_INDEX_RESPONSE_TIME_NANOS] = responseTimeNanos;
+        t[RESPONSE_INDEX_CLOCK_OFFSET_NANOS] = ((receiveTimeNanos - originateTimeNanos) +
+                                                (transmitTimeNanos - responseTimeNanos)) / 2;
+        t[RESPONSE_INDEX_ROUND_TRIP_DELAY_NANOS] = (responseTimeNanos - originateTimeNanos) -
+                                                   (transmitTimeNanos - receiveTimeNanos);
+
+        // -----------------------------------------------------------------------------------
+        // check validity of response
+
+        if ((buffer[1] & 0xff) == 0) {
+            // the rest of a Kiss-o'-Death packet is meaningless
+            String kissCode = readKissCode(buffer);
+            throw new KissOfDeathException("Kiss-o'-Death response from NTP server: " + kissCode, kissCode);
+        }
+
+        t[RESPONSE_INDEX_ROOT_DELAY] = read(buffer, INDEX_ROOT_DELAY);
+        double rootDelay = doubleMillis(t[RESPONSE_INDEX_ROOT_DELAY]);
+        if (rootDelay > rootDelayMax) {
+            throw new InvalidNtpServerResponseException(
+                "Invalid response from NTP server. %s violation. %f [actual] > %f [expected]",
+                "root_delay",
+                (float) rootDelay,
+                rootDelayMax);
+        }
+
+        t[RESPONSE_INDEX_DISPERSION] = read(buffer, INDEX_ROOT_DISPERSION);
+        double rootDispersion = doubleMillis(t[RESPONSE_INDEX_DISPERSION]);
+        if (rootDispersion > rootDispersionMax) {
+            throw new InvalidNtpServerResponseException(
+                "Invalid response from NTP server. %s violation. %f [actual] > %f [expected]",
+                "root_dispersion",
+                (float) rootDispersion,
+                rootDispersionMax);
+        }
+
+        final byte mode = (byte) (buffer[0] & 0x7);
+        if (mode != 4 && mode != 5) {
+            throw new InvalidNtpServerResponseException("untrusted mode value for TrueTime: " + mode);
+        }
+
+        final int stratum = buffer[1] & 0xff;
+        t[RESPONSE_INDEX_STRATUM] = stratum;
+        if (stratum < 1 || stratum > 15) {
+            throw new InvalidNtpServerResponseException("untrusted stratum value for TrueTime: " + stratum);
+        }
+
+        final byte leap = (byte) ((buffer[0] >> 6) & 0x3);
+        if (leap == 3) {
+            throw new InvalidNtpServerResponseException("unsynchronized server responded for TrueTime");
+        }
+
+        double delay = Math.abs(t[RESPONSE_INDEX_ROUND_TRIP_DELAY_NANOS]) / 1e6;
+        if (delay >= serverResponseDelayMax) {
+            throw new InvalidNtpServerResponseException(
+                "%s too large for comfort %f [actual] >= %f [expected]",
+                "server_response_delay",
+                (float) delay,
+                serverResponseDelayMax);
+        }
+
+        // T3 rather than the system clock, which may have been set since the request was sent
+        long timeElapsedSinceRequest = Math.abs(originateTime - responseTime);
+        if (timeElapsedSinceRequest >= 10_000) {
+            throw new InvalidNtpServerResponseException("Request was sent more than 10 seconds back " +
+                                                        timeElapsedSinceRequest);
+        }
+
+        long rootDistanceNanos = getRootDistanceNanos(t);
+        t[RESPONSE_INDEX_OFFSET_LOW_NANOS] = t[RESPONSE_INDEX_CLOCK_OFFSET_NANOS] - rootDistanceNanos;
+        t[RESPONSE_INDEX_OFFSET_HIGH_NANOS] = t[RESPONSE_INDEX_CLOCK_OFFSET_NANOS] + rootDistanceNanos;
+        return t;
     }
 
+    /**
+     * Publishes the response as the new sync snapshot.
+     *
+     * The (sntp time, device uptime) pair is swapped in as a single immutable object so readers
+     * can never combine values from two different responses. If syncs race, a response received
+     * earlier never replaces one received later.
+     */
     void cacheTrueTimeInfo(long[] response) {
-        _cachedSntpTime.set(sntpTime(response));
-        _cachedDeviceUptime.set(response[RESPONSE_INDEX_RESPONSE_TICKS]);
+        cacheTrueTimeInfo(toSnapshot(response, 0D), null, 0L);
+    }
+
+    /**
+     * @param target snapshot of the latest sync, see {@link #toSnapshot(long[], double)}
+     * @param coldStartSnapshot snapshot readers were using before this client ever synced
+     *                          (e.g. restored from disk), slewed from if nothing was cached yet
+     * @param slewWindowInMillis if > 0, slew from the previous time line to the new one over this
+     *                           window instead of stepping
+     * @see #cacheTrueTimeInfo(long[])
+     */
+    void cacheTrueTimeInfo(TrueTimeSnapshot target, TrueTimeSnapshot coldStartSnapshot, long slewWindowInMillis) {
+        while (true) {
+            TrueTimeSnapshot current = _cachedSnapshot.get();
+            if (current != null && current.deviceUptime > target.deviceUptime) {
+                TrueLog.d(TAG, "---- ignoring stale SNTP response, a newer one was already cached");
+                return;
+            }
+
+            TrueTimeSnapshot previous = current != null ? current : coldStartSnapshot;
+            TrueTimeSnapshot snapshot = slewWindowInMillis > 0L && previous != null
+                                        ? previous.slewTowards(target,
+                                                               slewWindowInMillis,
+                                                               SystemClockCompat.elapsedRealtimeNanos())
+                                        : target;
+
+            if (_cachedSnapshot.compareAndSet(current, snapshot)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param driftRate estimated oscillator drift to extrapolate with, see {@link ClockDriftEstimator}
+     */
+    TrueTimeSnapshot toSnapshot(long[] response, double driftRate) {
+        return new TrueTimeSnapshot(sntpTime(response),
+                                    response[RESPONSE_INDEX_RESPONSE_TICKS],
+                                    sntpTimeNanos(response),
+                                    response[RESPONSE_INDEX_RESPONSE_TICKS_NANOS],
+                                    getRoundTripDelay(response),
+                                    getRootDistanceNanos(response),
+                                    driftRate);
     }
 
     long sntpTime(long[] response) {
-        long clockOffset = getClockOffset(response);
-        long responseTime = response[RESPONSE_INDEX_RESPONSE_TIME];
-        return responseTime + clockOffset;
+        return sntpTimeNanos(response) / 1_000_000L;
+    }
+
+    long sntpTimeNanos(long[] response) {
+        return response[RESPONSE_INDEX_RESPONSE_TIME_NANOS] + response[RESPONSE_INDEX_CLOCK_OFFSET_NANOS];
     }
 
     boolean wasInitialized() {
-        return _sntpInitialized.get();
+        return _cachedSnapshot.get() != null;
+    }
+
+    /**
+     * @return snapshot of the last sync or null if there hasn't been one in this process
+     */
+    TrueTimeSnapshot getCachedSnapshot() {
+        return _cachedSnapshot.get();
     }
 
     /**
      * @return time value computed from NTP server response
      */
     long getCachedSntpTime() {
-        return _cachedSntpTime.get();
+        TrueTimeSnapshot snapshot = _cachedSnapshot.get();
+        return snapshot == null ? 0L : snapshot.sntpTime;
     }
 
     /**
      * @return device uptime computed at time of executing the NTP request
      */
     long getCachedDeviceUptime() {
-        return _cachedDeviceUptime.get();
+        TrueTimeSnapshot snapshot = _cachedSnapshot.get();
+        return snapshot == null ? 0L : snapshot.deviceUptime;
     }
 
     // -----------------------------------------------------------------------------------
@@ -247,7 +822,7 @@ public class SntpClient {
     /**
      * Writes NTP version as defined in RFC-1305
      */
-    private void writeVersion(byte[] buffer) {
+    private static void writeVersion(byte[] buffer) {
         // mode is in low 3 bits of first byte
         // version is in bits 3-5 of first byte
         buffer[INDEX_VERSION] = NTP_MODE | (NTP_VERSION << 3);
@@ -258,13 +833,14 @@ public class SntpClient {
      * as an NTP time stamp as defined in RFC-1305
      * at the given offset in the buffer
      */
-    private void writeTimeStamp(byte[] buffer, int offset, long time) {
+    private static void writeTimeStamp(byte[] buffer, int offset, long time, int nonce) {
 
         long seconds = time / 1000L;
         long milliseconds = time - seconds * 1000L;
 
         // consider offset for number of seconds
         // between Jan 1, 1900 (NTP epoch) and Jan 1, 1970 (Java epoch)
+        // past 2036 only the low 32 bits are written, see eraSeconds
         seconds += OFFSET_1900_TO_1970;
 
         // write seconds in big endian format
@@ -273,26 +849,82 @@ public class SntpClient {
         buffer[offset++] = (byte) (seconds >> 8);
         buffer[offset++] = (byte) (seconds >> 0);
 
-        long fraction = milliseconds * 0x100000000L / 1000L;
+        // low order bits should be random data: the nonce stays within the millisecond
+        long fraction = milliseconds * 0x100000000L / 1000L + (nonce & NONCE_MASK);
 
         // write fraction in big endian format
         buffer[offset++] = (byte) (fraction >> 24);
         buffer[offset++] = (byte) (fraction >> 16);
         buffer[offset++] = (byte) (fraction >> 8);
-
-        // low order bits should be random data
-        buffer[offset++] = (byte) (Math.random() * 255.0);
+        buffer[offset++] = (byte) (fraction >> 0);
     }
 
     /**
      * @param offset offset index in buffer to start reading from
      * @return NTP timestamp in Java epoch
      */
-    private long readTimeStamp(byte[] buffer, int offset) {
-        long seconds = read(buffer, offset);
+    private static long readTimeStamp(byte[] buffer, int offset) {
+        long seconds = eraSeconds(read(buffer, offset));
+        long fraction = read(buffer, offset + 4);
+
+        return ((seconds - OFFSET_1900_TO_1970) * 1000) + ((fraction * 1000L) >>> 32);
+    }
+
+    /**
+     * @param offset offset index in buffer to start reading from
+     * @return NTP timestamp in Java epoch, in nanoseconds
+     */
+    private static long readTimeStampNanos(byte[] buffer, int offset) {
+        long seconds = eraSeconds(read(buffer, offset));
         long fraction = read(buffer, offset + 4);
 
-        return ((seconds - OFFSET_1900_TO_1970) * 1000) + ((fraction * 1000L) / 0x100000000L);
+        return ((seconds - OFFSET_1900_TO_1970) * 1_000_000_000L) + ((fraction * 1_000_000_000L) >>> 32);
+    }
+
+    /**
+     * NTP timestamps only carry the seconds modulo 2^32, which wrap on 2036-02-07 (era 1).
+     * As in RFC 4330 section 3, timestamps with the most significant bit cleared are taken to be
+     * in era 1, which covers 1968 to 2104.
+     *
+     * @param seconds unsigned 32 bit seconds of an NTP timestamp
+     * @return seconds since the NTP epoch (1900), era included
+     */
+    static long eraSeconds(long seconds) {
+        return (seconds & 0x80000000L) == 0 ? seconds + 0x100000000L : seconds;
+    }
+
+    /**
+     * @return the ASCII kiss code in the reference id of a Kiss-o'-Death packet
+     */
+    private static String readKissCode(byte[] buffer) {
+        StringBuilder kissCode = new StringBuilder(4);
+        for (int i = INDEX_REFERENCE_ID; i < INDEX_REFERENCE_ID + 4; i++) {
+            char c = (char) (buffer[i] & 0xff);
+            if (c < 0x20 || c > 0x7e) {
+                break;
+            }
+            kissCode.append(c);
+        }
+        return kissCode.toString();
+    }
+
+    /**
+     * @return index of key among the first count keys, -1 if it isn't one of them
+     */
+    private static int indexOf(long[] keys, int count, long key) {
+        for (int i = 0; i < count; i++) {
+            if (keys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return 8 bytes as a 64-bit long (big endian)
+     */
+    private static long readRaw64(byte[] buffer, int offset) {
+        return (read(buffer, offset) << 32) | read(buffer, offset + 4);
     }
 
     /**
@@ -301,7 +933,7 @@ public class SntpClient {
      *
      * @return 4 bytes as a 32-bit long (unsigned big endian)
      */
-    private long read(byte[] buffer, int offset) {
+    private static long read(byte[] buffer, int offset) {
         byte b0 = buffer[offset];
         byte b1 = buffer[offset + 1];
         byte b2 = buffer[offset + 2];
@@ -322,7 +954,7 @@ public class SntpClient {
      * @param b input byte
      * @return unsigned int value of byte
      */
-    private int ui(byte b) {
+    private static int ui(byte b) {
         return b & 0xFF;
     }
 
@@ -335,7 +967,15 @@ public class SntpClient {
      * @param fix signed fixed point number
      * @return as a double in milliseconds
      */
-    private double doubleMillis(long fix) {
+    private static double doubleMillis(long fix) {
         return fix / 65.536D;
     }
+
+    /**
+     * @param fix NTP Short format (16.16 fixed point seconds), see {@link #doubleMillis(long)}
+     * @return as nanoseconds
+     */
+    private static long ntpShortToNanos(long fix) {
+        return (fix * 1_000_000_000L) >> 16;
+    }
 }
@@ -0,0 +1,603 @@
+package com.instacart.library.truetime;
+
+import android.os.SystemClock;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking SNTP engine.
+ *
+ * A single selector thread sends every request over one non-blocking {@link DatagramChannel} and
+ * waits for all the responses at once, instead of parking a thread per request in
+ * {@link java.net.DatagramSocket#receive}. Responses are matched to their request by the originate
+ * timestamp (our transmit timestamp echoed back by the server, see {@link NonceTable}) and timeouts are driven by the
+ * selector's own wait.
+ *
+ * An exchange can be hedged: if no response arrived within a delay (typically a high percentile
+ * of the server's recent round trip times, see {@link RttHistory}) a duplicate request is sent to the
+ * same server and whichever valid response arrives first completes the exchange. This
+ * avoids waiting for the full timeout when a packet is lost, while only adding traffic for the slowest
+ * few requests.
+ *
+ * Listeners are called on the selector thread and must not block.
+ */
+final class SntpNioEngine {
+
+    private static final String TAG = SntpNioEngine.class.getSimpleName();
+
+    private static SntpNioEngine _sharedEngine = null;
+
+    private final Queue<Exchange> _submissions = new ConcurrentLinkedQueue<>();
+    private final Queue<Exchange> _cancellations = new ConcurrentLinkedQueue<>();
+
+    // guarded by this
+    private Selector _selector = null;
+    private DatagramChannel _channel = null;
+
+    // -----------------------------------------------------------------------------------
+    // only touched by the selector thread
+
+    private final NonceTable<Attempt> _inFlight = new NonceTable<>(16);
+    private final PriorityQueue<Exchange> _deadlines = new PriorityQueue<>(16, new Comparator<Exchange>() {
+        @Override
+        public int compare(Exchange lhs, Exchange rhs) {
+            return lhs._deadlineNanos < rhs._deadlineNanos ? -1 : (lhs._deadlineNanos == rhs._deadlineNanos ? 0 : 1);
+        }
+    });
+    private final PriorityQueue<Exchange> _hedges = new PriorityQueue<>(16, new Comparator<Exchange>() {
+        @Override
+        public int compare(Exchange lhs, Exchange rhs) {
+            return lhs._hedgeAtNanos < rhs._hedgeAtNanos ? -1 : (lhs._hedgeAtNanos == rhs._hedgeAtNanos ? 0 : 1);
+        }
+    });
+    private final ByteBuffer _receiveBuffer = ByteBuffer.allocate(SntpClient.NTP_PACKET_SIZE);
+    private final byte[] _responsePacket = new byte[SntpClient.NTP_PACKET_SIZE];
+
+    static synchronized SntpNioEngine shared() {
+        if (_sharedEngine == null) {
+            _sharedEngine = new SntpNioEngine();
+        }
+        return _sharedEngine;
+    }
+
+    /**
+     * Sends an NTP request to the given server without blocking.
+     *
+     * @param listener notified exactly once, on the selector thread, unless the exchange is cancelled
+     * @return the exchange, which can be cancelled
+     */
+    Exchange requestTime(InetAddress address,
+        float rootDelayMax,
+        float rootDispersionMax,
+        int serverResponseDelayMax,
+        int timeoutInMillis,
+        SntpResponseListener listener
+    )
+        throws IOException {
+
+        return requestTime(address,
+                           null,
+                           0L,
+                           null,
+                           rootDelayMax,
+                           rootDispersionMax,
+                           serverResponseDelayMax,
+                           timeoutInMillis,
+                           listener);
+    }
+
+    /**
+     * Hedged version of {@link #requestTime(InetAddress, float, float, int, int, SntpResponseListener)}
+     *
+     * @param hedgeAddress    server the duplicate request is sent to, null not to hedge. The response is
+     *                        taken as address's, so this is address itself
+     * @param hedgeDelayNanos how long to wait for a response before sending the duplicate request
+     * @param rttHistory      round trip time of the response, or the timeout, is recorded here. May be null
+     */
+    Exchange requestTime(InetAddress address,
+        InetAddress hedgeAddress,
+        long hedgeDelayNanos,
+        RttHistory rttHistory,
+        float rootDelayMax,
+        float rootDispersionMax,
+        int serverResponseDelayMax,
+        int timeoutInMillis,
+        SntpResponseListener listener
+    )
+        throws IOException {
+
+        Exchange exchange = new Exchange(new InetSocketAddress(address, SntpClient.NTP_PORT),
+                                         hedgeAddress == null ? null : new InetSocketAddress(hedgeAddress, SntpClient.NTP_PORT),
+                                         hedgeDelayNanos,
+                                         rttHistory,
+                                         rootDelayMax,
+                                         rootDispersionMax,
+                                         serverResponseDelayMax,
+                                         timeoutInMillis,
+                                         listener);
+        _submissions.add(exchange);
+        ensureRunning().wakeup();
+        return exchange;
+    }
+
+    /**
+     * Blocking version of {@link #requestTime(InetAddress, float, float, int, int, SntpResponseListener)},
+     * the exchange itself still runs on the selector thread.
+     */
+    long[] requestTime(InetAddress address,
+        float rootDelayMax,
+        float rootDispersionMax,
+        int serverResponseDelayMax,
+        int timeoutInMillis
+    )
+        throws IOException {
+
+        return requestTime(address,
+                           null,
+                           0L,
+                           null,
+                           rootDelayMax,
+                           rootDispersionMax,
+                           serverResponseDelayMax,
+                           timeoutInMillis,
+                           (SyncToken) null);
+    }
+
+    /**
+     * Blocking version of {@link #requestTime(InetAddress, InetAddress, long, RttHistory, float, float, int, int, SntpResponseListener)}
+     *
+     * @param token fails the exchange when the sync is cancelled, may be null
+     */
+    long[] requestTime(InetAddress address,
+        InetAddress hedgeAddress,
+        long hedgeDelayNanos,
+        RttHistory rttHistory,
+        float rootDelayMax,
+        float rootDispersionMax,
+        int serverResponseDelayMax,
+        int timeoutInMillis,
+        SyncToken token
+    )
+        throws IOException {
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long[][] response = new long[1][];
+        final IOException[] failure = new IOException[1];
+
+        Exchange exchange = requestTime(address,
+                                        hedgeAddress,
+                                        hedgeDelayNanos,
+                                        rttHistory,
+                                        rootDelayMax,
+                                        rootDispersionMax,
+                                        serverResponseDelayMax,
+                                        timeoutInMillis,
+                                        new SntpResponseListener() {
+                                            @Override
+                                            public void onResponse(long[] r) {
+                                                response[0] = r;
+                                                latch.countDown();
+                                            }
+
+                                            @Override
+                                            public void onFailure(IOException e) {
+                                                failure[0] = e;
+                                                latch.countDown();
+                                            }
+                                        });
+
+        try {
+            if (token != null) {
+                token.register(exchange);
+            }
+            latch.await();
+        } catch (InterruptedException e) {
+            exchange.cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("SNTP request to " + address + " interrupted");
+        } finally {
+            if (token != null) {
+                token.unregister(exchange);
+            }
+        }
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return response[0];
+    }
+
+    // -----------------------------------------------------------------------------------
+
+    private synchronized Selector ensureRunning() throws IOException {
+        if (_selector != null) {
+            return _selector;
+        }
+
+        _selector = Selector.open();
+        try {
+            _channel = DatagramChannel.open();
+            _channel.configureBlocking(false);
+            _channel.register(_selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        final Selector selector = _selector;
+        final DatagramChannel channel = _channel;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop(selector, channel);
+            }
+        }, "TrueTime-SNTP-NIO");
+        thread.setDaemon(true);
+        thread.start();
+        return _selector;
+    }
+
+    private synchronized void close() {
+        try {
+            if (_channel != null) {
+                _channel.close();
+            }
+            if (_selector != null) {
+                _selector.close();
+            }
+        } catch (IOException e) {
+            TrueLog.w(TAG, "---- error closing SNTP NIO channel", e);
+        }
+        _channel = null;
+        _selector = null;
+    }
+
+    private void loop(Selector selector, DatagramChannel channel) {
+        try {
+            while (true) {
+                processCancellations();
+                processSubmissions(channel);
+                long waitMillis = processTimers(channel);
+
+                if (selector.select(waitMillis) > 0) {
+                    selector.selectedKeys().clear();
+                    receiveResponses(channel);
+                }
+            }
+        } catch (IOException e) {
+            TrueLog.e(TAG, "---- SNTP NIO engine failed", e);
+            List<Exchange> failed = new ArrayList<>();
+            // cleared before closing: once closed, the next request starts a new selector thread
+            // that must not see this one's exchanges. A request is queued before it takes the lock in
+            // ensureRunning(), so it's either drained here or picked up by the new thread.
+            synchronized (this) {
+                // every exchange in flight has a deadline
+                failed.addAll(_deadlines);
+                _inFlight.clear();
+                _deadlines.clear();
+                _hedges.clear();
+                Exchange pending;
+                while ((pending = _submissions.poll()) != null) {
+                    failed.add(pending);
+                }
+                close();
+            }
+            for (Exchange exchange : failed) {
+                exchange.fail(e);
+            }
+        }
+    }
+
+    private void processSubmissions(DatagramChannel channel) {
+        Exchange exchange;
+        while ((exchange = _submissions.poll()) != null) {
+            if (exchange.isDone()) {
+                continue;
+            }
+
+            try {
+                ServerRateLimiter.shared().acquire(exchange._primary._address.getAddress());
+                send(channel, exchange._primary);
+            } catch (IOException e) {
+                TrueLog.d(TAG, "---- SNTP request failed for " + exchange._primary._address);
+                exchange.fail(e);
+                continue;
+            }
+
+            long now = System.nanoTime();
+            exchange._deadlineNanos = now + exchange._timeoutInMillis * 1_000_000L;
+            _deadlines.add(exchange);
+
+            if (exchange._hedge != null) {
+                exchange._hedgeAtNanos = now + exchange._hedgeDelayNanos;
+                if (exchange._hedgeAtNanos < exchange._deadlineNanos) {
+                    _hedges.add(exchange);
+                }
+            }
+        }
+    }
+
+    private void send(DatagramChannel channel, Attempt attempt) throws IOException {
+        long key;
+        do {
+            // the low order bits of the transmit timestamp are random,
+            // so rewriting it makes requests sent within the same millisecond distinguishable
+            attempt._requestTime = System.currentTimeMillis();
+            SntpClient.writeRequest(attempt._request, attempt._requestTime);
+            key = SntpClient.requestKey(attempt._request);
+        } while (_inFlight.containsKey(key));
+
+        attempt._key = key;
+        attempt._requestTicks = SystemClock.elapsedRealtime();
+        attempt._requestTicksNanos = SystemClockCompat.elapsedRealtimeNanos();
+
+        if (channel.send(ByteBuffer.wrap(attempt._request), attempt._address) == 0) {
+            // no room in the socket's send buffer: the datagram was dropped, don't wait for a response to it
+            throw new IOException("SNTP request to " + attempt._address + " not sent, send buffer full");
+        }
+        _inFlight.put(key, attempt);
+    }
+
+    private void processCancellations() {
+        Exchange exchange;
+        while ((exchange = _cancellations.poll()) != null) {
+            retire(exchange);
+        }
+    }
+
+    /**
+     * Sends the hedges that are due and fails the exchanges that timed out
+     *
+     * @return how long the selector may wait before the next timer, 0 if there's none
+     */
+    private long processTimers(DatagramChannel channel) {
+        long now = System.nanoTime();
+
+        Exchange hedged;
+        while ((hedged = _hedges.peek()) != null && hedged._hedgeAtNanos <= now) {
+            _hedges.poll();
+            try {
+                ServerRateLimiter.shared().acquire(hedged._hedge._address.getAddress());
+                TrueLog.d(TAG, "---- no response yet, hedging SNTP request to " + hedged._hedge._address);
+                send(channel, hedged._hedge);
+            } catch (IOException e) {
+                // the first request is still in flight
+                TrueLog.d(TAG, "---- SNTP hedge request failed for " + hedged._hedge._address);
+            }
+        }
+
+        Exchange next;
+        while ((next = _deadlines.peek()) != null && next._deadlineNanos <= now) {
+            retire(next);
+            TrueLog.d(TAG, "---- SNTP request timed out for " + next._primary._address);
+            if (next._rttHistory != null) {
+                next._rttHistory.backoff(next._primary._address.getAddress());
+            }
+            next.fail(new SocketTimeoutException("SNTP request to " + next._primary._address + " timed out"));
+        }
+
+        long nextTimer = Long.MAX_VALUE;
+        if (next != null) {
+            nextTimer = next._deadlineNanos;
+        }
+        if (hedged != null && hedged._hedgeAtNanos < nextTimer) {
+            nextTimer = hedged._hedgeAtNanos;
+        }
+
+        if (nextTimer == Long.MAX_VALUE) {
+            return 0L;
+        }
+        return Math.max(1L, (nextTimer - now) / 1_000_000L);
+    }
+
+    /**
+     * Stops tracking every attempt of exchange
+     */
+    private void retire(Exchange exchange) {
+        retire(exchange._primary);
+        if (exchange._hedge != null) {
+            retire(exchange._hedge);
+        }
+        _deadlines.remove(exchange);
+        _hedges.remove(exchange);
+    }
+
+    private void retire(Attempt attempt) {
+        if (_inFlight.get(attempt._key) == attempt) {
+            _inFlight.remove(attempt._key);
+        }
+    }
+
+    private boolean isInFlight(Attempt attempt) {
+        return attempt != null && _inFlight.get(attempt._key) == attempt;
+    }
+
+    private void receiveResponses(DatagramChannel channel) throws IOException {
+        while (true) {
+            _receiveBuffer.clear();
+            SocketAddress from = channel.receive(_receiveBuffer);
+            if (from == null) {
+                return;
+            }
+
+            long responseTicksNanos = SystemClockCompat.elapsedRealtimeNanos();
+            long responseTicks = SystemClock.elapsedRealtime();
+
+            if (_receiveBuffer.position() < SntpClient.NTP_PACKET_SIZE) {
+                TrueLog.d(TAG, "---- dropping truncated datagram from " + from);
+                continue;
+            }
+            _receiveBuffer.flip();
+            _receiveBuffer.get(_responsePacket);
+
+            long key = SntpClient.responseKey(_responsePacket);
+            Attempt attempt = _inFlight.get(key);
+            if (attempt == null || !attempt._address.equals(from)) {
+                TrueLog.d(TAG, "---- dropping unexpected datagram from " + from);
+                continue;
+            }
+
+            Exchange exchange = attempt._exchange;
+            _inFlight.remove(key);
+
+            try {
+                long[] response = SntpClient.parseResponse(_responsePacket,
+                                                           attempt._requestTime,
+                                                           attempt._requestTicks,
+                                                           attempt._requestTicksNanos,
+                                                           responseTicks,
+                                                           responseTicksNanos,
+                                                           exchange._rootDelayMax,
+                                                           exchange._rootDispersionMax,
+                                                           exchange._serverResponseDelayMax);
+                response[SntpClient.RESPONSE_INDEX_SERVER_ID] = SntpClient.serverId(attempt._address.getAddress());
+                TrueLog.i(TAG, "---- SNTP successful response from " + attempt._address);
+                ServerRateLimiter.shared().onResponse(attempt._address.getAddress());
+                retire(exchange);
+                if (exchange._rttHistory != null) {
+                    exchange._rttHistory.record(attempt._address.getAddress(),
+                                                response[SntpClient.RESPONSE_INDEX_ROUND_TRIP_DELAY_NANOS]);
+                }
+                exchange.succeed(response);
+            } catch (InvalidNtpServerResponseException e) {
+                TrueLog.d(TAG, "---- SNTP request failed for " + attempt._address);
+                if (e instanceof KissOfDeathException) {
+                    ServerRateLimiter.shared().onKissOfDeath(attempt._address.getAddress(), (KissOfDeathException) e);
+                }
+                Attempt other = attempt == exchange._primary ? exchange._hedge : exchange._primary;
+                if (isInFlight(other)) {
+                    // the other attempt may still bring a valid response
+                    continue;
+                }
+                retire(exchange);
+                exchange.fail(e);
+            }
+        }
+    }
+
+    // -----------------------------------------------------------------------------------
+
+    /**
+     * A request to a server, hedged or not, completing with a single response
+     */
+    final class Exchange {
+
+        private final Attempt _primary;
+        private final Attempt _hedge;
+        private final long _hedgeDelayNanos;
+        private final RttHistory _rttHistory;
+        private final float _rootDelayMax;
+        private final float _rootDispersionMax;
+        private final int _serverResponseDelayMax;
+        private final int _timeoutInMillis;
+        private final SntpResponseListener _listener;
+        private final AtomicBoolean _done = new AtomicBoolean(false);
+
+        // written by the selector thread
+        private long _deadlineNanos;
+        private long _hedgeAtNanos;
+
+        private Exchange(InetSocketAddress address,
+                         InetSocketAddress hedgeAddress,
+                         long hedgeDelayNanos,
+                         RttHistory rttHistory,
+                         float rootDelayMax,
+                         float rootDispersionMax,
+                         int serverResponseDelayMax,
+                         int timeoutInMillis,
+                         SntpResponseListener listener) {
+            _primary = new Attempt(this, address);
+            _hedge = hedgeAddress == null ? null : new Attempt(this, hedgeAddress);
+            _hedgeDelayNanos = hedgeDelayNanos;
+            _rttHistory = rttHistory;
+            _rootDelayMax = rootDelayMax;
+            _rootDispersionMax = rootDispersionMax;
+            _serverResponseDelayMax = serverResponseDelayMax;
+            _timeoutInMillis = timeoutInMillis;
+            _listener = listener;
+        }
+
+        /**
+         * Stops waiting for the response; the listener won't be called anymore
+         */
+        void cancel() {
+            if (_done.compareAndSet(false, true)) {
+                retire();
+            }
+        }
+
+        /**
+         * Stops waiting for the response and fails the exchange with cause, on the calling thread
+         */
+        void abort(IOException cause) {
+            if (_done.compareAndSet(false, true)) {
+                retire();
+                _listener.onFailure(cause);
+            }
+        }
+
+        private void retire() {
+            _cancellations.add(this);
+            Selector selector;
+            synchronized (SntpNioEngine.this) {
+                selector = _selector;
+            }
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+
+        boolean isDone() {
+            return _done.get();
+        }
+
+        private void succeed(long[] response) {
+            if (_done.compareAndSet(false, true)) {
+                _listener.onResponse(response);
+            }
+        }
+
+        private void fail(IOException e) {
+            if (_done.compareAndSet(false, true)) {
+                _listener.onFailure(e);
+            }
+        }
+    }
+
+    /**
+     * One request sent on behalf of an {@link Exchange}, matched to its response by key
+     */
+    private static final class Attempt {
+
+        private final Exchange _exchange;
+        private final InetSocketAddress _address;
+        private final byte[] _request = new byte[SntpClient.NTP_PACKET_SIZE];
+
+        // written by the selector thread
+        private long _key;
+        private long _requestTime;
+        private long _requestTicks;
+        private long _requestTicksNanos;
+
+        private Attempt(Exchange exchange, InetSocketAddress address) {
+            _exchange = exchange;
+            _address = address;
+        }
+    }
+}
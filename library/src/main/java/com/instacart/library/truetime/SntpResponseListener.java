@@ -0,0 +1,16 @@
+package com.instacart.library.truetime;
+
+import java.io.IOException;
+
+/**
+ * Completion callback for asynchronous SNTP requests
+ */
+interface SntpResponseListener {
+
+    /**
+     * @param response long[] with the RESPONSE_INDEX_ values of {@link SntpClient}
+     */
+    void onResponse(long[] response);
+
+    void onFailure(IOException e);
+}
@@ -0,0 +1,135 @@
+package com.instacart.library.truetime;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps SNTP sockets and their buffers open per server so continuous syncing doesn't create a
+ * socket, a file descriptor, packets and buffers on every request.
+ *
+ * Borrowing and returning a socket is lock and allocation free; only growing the pool allocates.
+ */
+final class SntpSocketPool {
+
+    private static final String TAG = SntpSocketPool.class.getSimpleName();
+
+    /** idle sockets kept per server, enough for a few concurrent samples */
+    private static final int SOCKETS_PER_SERVER = 4;
+
+    private final ConcurrentHashMap<InetAddress, AtomicReferenceArray<PooledSocket>> _idleSockets =
+          new ConcurrentHashMap<>();
+
+    PooledSocket acquire(InetAddress address) throws IOException {
+        AtomicReferenceArray<PooledSocket> idle = idleSockets(address);
+        for (int i = 0; i < SOCKETS_PER_SERVER; i++) {
+            PooledSocket socket = idle.getAndSet(i, null);
+            if (socket != null) {
+                return socket;
+            }
+        }
+
+        return new PooledSocket(address);
+    }
+
+    void release(InetAddress address, PooledSocket socket) {
+        AtomicReferenceArray<PooledSocket> idle = idleSockets(address);
+        for (int i = 0; i < SOCKETS_PER_SERVER; i++) {
+            if (idle.compareAndSet(i, null, socket)) {
+                return;
+            }
+        }
+        socket.close();
+    }
+
+    void discard(PooledSocket socket) {
+        socket.close();
+    }
+
+    /**
+     * Closes every idle socket
+     */
+    void clear() {
+        for (AtomicReferenceArray<PooledSocket> idle : _idleSockets.values()) {
+            for (int i = 0; i < SOCKETS_PER_SERVER; i++) {
+                PooledSocket socket = idle.getAndSet(i, null);
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    private AtomicReferenceArray<PooledSocket> idleSockets(InetAddress address) {
+        AtomicReferenceArray<PooledSocket> idle = _idleSockets.get(address);
+        if (idle == null) {
+            _idleSockets.putIfAbsent(address, new AtomicReferenceArray<PooledSocket>(SOCKETS_PER_SERVER));
+            idle = _idleSockets.get(address);
+        }
+        return idle;
+    }
+
+    // -----------------------------------------------------------------------------------
+
+    /**
+     * A socket connected to a single server, with a precomputed request and reusable packets
+     */
+    static final class PooledSocket {
+
+        final byte[] response = new byte[SntpClient.NTP_PACKET_SIZE];
+
+        private final byte[] _request = new byte[SntpClient.NTP_PACKET_SIZE];
+        private final DatagramSocket _socket;
+        private final DatagramPacket _requestPacket;
+        private final DatagramPacket _responsePacket;
+        private long _requestKey;
+        private long _deadlineNanos;
+        private long _random;
+
+        private PooledSocket(InetAddress address) throws IOException {
+            SntpClient.writeRequestTemplate(_request);
+            _requestPacket = new DatagramPacket(_request, _request.length, address, SntpClient.NTP_PORT);
+            _responsePacket = new DatagramPacket(response, response.length);
+            _socket = new DatagramSocket();
+            // only accept datagrams from this server
+            _socket.connect(address, SntpClient.NTP_PORT);
+            _random = System.nanoTime() | 1L;
+        }
+
+        void send(long requestTime, int timeoutInMillis) throws IOException {
+            SntpClient.writeTransmitTimeStamp(_request, requestTime, nextNonce());
+            _requestKey = SntpClient.requestKey(_request);
+            _deadlineNanos = System.nanoTime() + timeoutInMillis * 1_000_000L;
+            _socket.send(_requestPacket);
+        }
+
+        /**
+         * Receives the response to the last request into {@link #response}. Datagrams left over from
+         * previous exchanges on this socket are dropped.
+         */
+        void receive() throws IOException {
+            SntpClient.receiveResponse(_socket, _responsePacket, _requestKey, _deadlineNanos);
+        }
+
+        void close() {
+            _socket.close();
+        }
+
+        DatagramSocket socket() {
+            return _socket;
+        }
+
+        /**
+         * xorshift, cheaper than Math.random() and without contention between sockets
+         */
+        private int nextNonce() {
+            _random ^= _random << 13;
+            _random ^= _random >>> 7;
+            _random ^= _random << 17;
+            return (int) _random;
+        }
+    }
+}
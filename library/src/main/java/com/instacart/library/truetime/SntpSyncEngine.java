@@ -0,0 +1,368 @@
+package com.instacart.library.truetime;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A full sync over several servers, on plain java.util.concurrent:
+ *
+ * 1. every server (typically the addresses an NTP pool name resolves to) is sampled several times,
+ *    and the sample with the lowest round trip delay is kept: it's the least affected by queuing
+ * 2. servers are sampled in parallel on an {@link Executor}, at most parallelism at a time, until
+ *    serverCount of them answered. Servers that fail are replaced by the next ones
+ * 3. the servers' best samples go through {@link ClockSelection}, which discards falsetickers
+ *
+ * With a quorum (see {@link TrueTimeClock#withQuorum(int, long)}) the servers' best samples are
+ * checked as every sample lands, and the sync completes as soon as enough servers agree closely
+ * enough, instead of waiting for the slowest server.
+ *
+ * Once a sync is done its {@link SyncToken} is cancelled, which releases requests still in flight.
+ */
+final class SntpSyncEngine {
+
+    private static final String TAG = SntpSyncEngine.class.getSimpleName();
+
+    private static ExecutorService _defaultExecutor = null;
+    private static ScheduledExecutorService _timer = null;
+
+    private final TrueTimeClock _clock;
+
+    SntpSyncEngine(TrueTimeClock clock) {
+        _clock = clock;
+    }
+
+    /**
+     * @return executor used when none is configured: daemon threads created on demand
+     */
+    static synchronized Executor defaultExecutor() {
+        if (_defaultExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            _defaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "TrueTime-sync-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return _defaultExecutor;
+    }
+
+    /**
+     * Runs task on a shared daemon thread after delayInMillis, for deadlines
+     */
+    static ScheduledFuture<?> schedule(Runnable task, long delayInMillis) {
+        ScheduledExecutorService timer;
+        synchronized (SntpSyncEngine.class) {
+            if (_timer == null) {
+                _timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "TrueTime-timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            timer = _timer;
+        }
+        return timer.schedule(task, delayInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Blocks until the sync is done. Nothing is published here.
+     *
+     * @param addresses        servers, in order of preference
+     * @param serverCount      servers whose samples are combined
+     * @param samplesPerServer requests sent to each server
+     * @param retryPolicy      applied to every request, may be null
+     * @param parallelism      servers sampled at the same time
+     * @return the selected response, see RESPONSE_INDEX_ in {@link SntpClient}
+     */
+    long[] sync(InetAddress[] addresses,
+                int serverCount,
+                int samplesPerServer,
+                RetryPolicy retryPolicy,
+                Executor executor,
+                int parallelism) throws IOException {
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long[][] response = new long[1][];
+        final IOException[] failure = new IOException[1];
+
+        SyncToken token = new SyncToken();
+        start(addresses, serverCount, samplesPerServer, retryPolicy, executor, parallelism, token,
+              new SntpResponseListener() {
+                  @Override
+                  public void onResponse(long[] r) {
+                      response[0] = r;
+                      latch.countDown();
+                  }
+
+                  @Override
+                  public void onFailure(IOException e) {
+                      failure[0] = e;
+                      latch.countDown();
+                  }
+              });
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            token.cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("TrueTime sync interrupted");
+        }
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return response[0];
+    }
+
+    /**
+     * Non blocking version of {@link #sync(InetAddress[], int, int, RetryPolicy, Executor, int)}
+     *
+     * @param token    cancelling it stops the sync, the listener is then still called
+     * @param listener called once, on one of the executor's threads
+     */
+    void start(InetAddress[] addresses,
+               int serverCount,
+               int samplesPerServer,
+               RetryPolicy retryPolicy,
+               Executor executor,
+               int parallelism,
+               SyncToken token,
+               SntpResponseListener listener) {
+
+        // a server listed twice would vote twice in the clock selection
+        addresses = new LinkedHashSet<>(Arrays.asList(addresses)).toArray(new InetAddress[0]);
+        Round round = new Round(addresses, serverCount, samplesPerServer, retryPolicy, token, listener);
+
+        int workers = Math.max(1, Math.min(parallelism, Math.min(serverCount, addresses.length)));
+        round.start(executor, workers);
+    }
+
+    // -----------------------------------------------------------------------------------
+
+    /**
+     * State of a single sync, shared by its workers
+     */
+    private final class Round
+          implements Runnable {
+
+        private final InetAddress[] _addresses;
+        private final int _serverCount;
+        private final int _samplesPerServer;
+        private final RetryPolicy _retryPolicy;
+        private final SyncToken _token;
+        private final SntpResponseListener _listener;
+        private final int _quorum;
+        private final long _quorumErrorNanos;
+
+        private final AtomicInteger _nextAddress = new AtomicInteger();
+        private final AtomicInteger _activeWorkers = new AtomicInteger();
+        private final AtomicBoolean _done = new AtomicBoolean(false);
+
+        // guarded by this
+        private final SampleBuffer _samples;
+        private final long[] _interval = new long[2];
+        private int _completedServers = 0;
+        private IOException _lastFailure = null;
+
+        private Round(InetAddress[] addresses,
+                      int serverCount,
+                      int samplesPerServer,
+                      RetryPolicy retryPolicy,
+                      SyncToken token,
+                      SntpResponseListener listener) {
+            _addresses = addresses;
+            _serverCount = serverCount;
+            _samplesPerServer = samplesPerServer;
+            _retryPolicy = retryPolicy;
+            _token = token;
+            _listener = listener;
+            _quorum = _clock.getQuorum();
+            _quorumErrorNanos = _clock.getQuorumErrorNanos();
+            _samples = new SampleBuffer(addresses.length);
+        }
+
+        void start(Executor executor, int workers) {
+            _activeWorkers.set(workers);
+            for (int i = 0; i < workers; i++) {
+                try {
+                    executor.execute(this);
+                } catch (RuntimeException e) {
+                    TrueLog.e(TAG, "---- executor rejected TrueTime sync", e);
+                    workerDone();
+                }
+            }
+        }
+
+        private synchronized long[] select() throws IOException {
+            int count = _samples.size();
+            if (count == 0) {
+                throw _lastFailure != null
+                      ? _lastFailure
+                      : new IOException("no NTP server could be sampled");
+            }
+
+            long[] response = ClockSelection.select(_samples);
+            TrueLog.d(TAG, "---- selected response with offset " + SntpClient.getClockOffsetNanos(response) +
+                           "ns out of " + count + " servers");
+            return response;
+        }
+
+        /**
+         * @return true if at least quorum servers are truechimers, within the target error
+         */
+        private synchronized boolean hasQuorum() {
+            if (_samples.size() < _quorum) {
+                return false;
+            }
+
+            int survivors = ClockSelection.intersect(_samples, _interval);
+            return survivors >= _quorum && (_interval[1] - _interval[0]) / 2 <= _quorumErrorNanos;
+        }
+
+        @Override
+        public void run() {
+            try {
+                int index;
+                while (!isFinished() && (index = _nextAddress.getAndIncrement()) < _addresses.length) {
+                    try {
+                        sampleServer(index);
+                        onServerDone();
+                    } catch (IOException e) {
+                        onFailure(e);
+                    }
+                }
+            } finally {
+                workerDone();
+            }
+        }
+
+        /**
+         * Samples the server at index, keeping its sample with the lowest round trip delay
+         *
+         * @throws IOException if no sample could be taken
+         */
+        private void sampleServer(int index) throws IOException {
+            InetAddress address = _addresses[index];
+            long serverId = SntpClient.serverId(address);
+
+            // a burst already samples the server several times, so does a warm clock filter across syncs
+            ClockFilter filter = _clock.getClockFilter();
+            int samples = _clock.isBurstEnabled() || (filter != null && filter.isWarm(address))
+                          ? 1
+                          : _samplesPerServer;
+
+            // the server's samples are written into these two arrays, swapped as a better one lands
+            long[] response = new long[SntpClient.RESPONSE_INDEX_SIZE];
+            long[] best = new long[SntpClient.RESPONSE_INDEX_SIZE];
+            boolean sampled = false;
+            IOException failure = null;
+            for (int i = 0; i < samples && !isFinished(); i++) {
+                try {
+                    _clock.requestTimeWithRetries(address, _retryPolicy, _token, response);
+                    if (SntpClient.getServerId(response) != serverId) {
+                        // filed under this slot, another server's sample would let it count as two truechimers
+                        failure = new InvalidNtpServerResponseException("response to a request to " +
+                                                                        address.getHostAddress() +
+                                                                        " came from another server");
+                        continue;
+                    }
+                    if (filter != null) {
+                        filter.add(response, best);
+                    } else if (!sampled ||
+                        SntpClient.getRoundTripDelayNanos(response) < SntpClient.getRoundTripDelayNanos(best)) {
+                        long[] previous = best;
+                        best = response;
+                        response = previous;
+                    }
+                    sampled = true;
+                    onSample(index, best);
+                } catch (KissOfDeathException e) {
+                    // the server asked to slow down or is at its poll interval, don't ask again in this sync
+                    failure = e;
+                    break;
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+
+            if (!sampled) {
+                throw failure != null ? failure : new InterruptedIOException("TrueTime sync cancelled");
+            }
+        }
+
+        private boolean isFinished() {
+            return _done.get() || _token.isCancelled();
+        }
+
+        private void onSample(int index, long[] best) {
+            boolean agreed;
+            synchronized (this) {
+                _samples.put(index, best);
+                agreed = _quorum > 0 && hasQuorum();
+            }
+            if (agreed) {
+                TrueLog.d(TAG, "---- " + _quorum + " NTP servers agree, not waiting for the others");
+                finish();
+            }
+        }
+
+        private void onServerDone() {
+            synchronized (this) {
+                if (++_completedServers < _serverCount) {
+                    return;
+                }
+            }
+            finish();
+        }
+
+        private synchronized void onFailure(IOException e) {
+            TrueLog.d(TAG, "---- NTP server failed: " + e.getMessage());
+            _lastFailure = e;
+        }
+
+        private void workerDone() {
+            if (_activeWorkers.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (!_done.compareAndSet(false, true)) {
+                return;
+            }
+
+            long[] response;
+            try {
+                response = select();
+            } catch (IOException e) {
+                _token.cancel();
+                _listener.onFailure(e);
+                return;
+            }
+
+            // releases the other workers' requests still in flight
+            _token.cancel();
+            _listener.onResponse(response);
+        }
+    }
+}
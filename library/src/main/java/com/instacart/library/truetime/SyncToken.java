@@ -0,0 +1,118 @@
+package com.instacart.library.truetime;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramSocket;
+import java.util.ArrayList;
+
+/**
+ * Cancellation of a sync in progress.
+ *
+ * Sockets and NIO exchanges are registered here while they're waiting for a response, so cancelling
+ * releases the threads blocked on them right away instead of after their timeout: sockets are
+ * closed and exchanges are failed. Waits between retries are cut short too.
+ */
+final class SyncToken {
+
+    // guarded by this
+    private boolean _cancelled = false;
+    private final ArrayList<DatagramSocket> _sockets = new ArrayList<>();
+    private final ArrayList<SntpNioEngine.Exchange> _exchanges = new ArrayList<>();
+
+    synchronized boolean isCancelled() {
+        return _cancelled;
+    }
+
+    /**
+     * @throws InterruptedIOException if the sync was cancelled
+     */
+    void check() throws InterruptedIOException {
+        if (isCancelled()) {
+            throw new InterruptedIOException("TrueTime sync cancelled");
+        }
+    }
+
+    /**
+     * Closes socket on cancellation, until {@link #unregister(DatagramSocket)}
+     *
+     * @throws InterruptedIOException (after closing socket) if the sync was already cancelled
+     */
+    void register(DatagramSocket socket) throws InterruptedIOException {
+        synchronized (this) {
+            if (!_cancelled) {
+                _sockets.add(socket);
+                return;
+            }
+        }
+        socket.close();
+        check();
+    }
+
+    synchronized void unregister(DatagramSocket socket) {
+        _sockets.remove(socket);
+    }
+
+    /**
+     * Fails exchange on cancellation, until {@link #unregister(SntpNioEngine.Exchange)}
+     *
+     * @throws InterruptedIOException (after failing exchange) if the sync was already cancelled
+     */
+    void register(SntpNioEngine.Exchange exchange) throws InterruptedIOException {
+        synchronized (this) {
+            if (!_cancelled) {
+                _exchanges.add(exchange);
+                return;
+            }
+        }
+        exchange.abort(new InterruptedIOException("TrueTime sync cancelled"));
+        check();
+    }
+
+    synchronized void unregister(SntpNioEngine.Exchange exchange) {
+        _exchanges.remove(exchange);
+    }
+
+    /**
+     * Like Thread.sleep() but returns early, throwing, when the sync is cancelled
+     */
+    void sleep(long millis) throws InterruptedIOException {
+        long until = System.nanoTime() + millis * 1_000_000L;
+        synchronized (this) {
+            try {
+                long remainingNanos;
+                while (!_cancelled && (remainingNanos = until - System.nanoTime()) > 0) {
+                    wait(Math.max(1L, remainingNanos / 1_000_000L));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("TrueTime sync interrupted");
+            }
+        }
+        check();
+    }
+
+    void cancel() {
+        DatagramSocket[] sockets;
+        SntpNioEngine.Exchange[] exchanges;
+        synchronized (this) {
+            if (_cancelled) {
+                return;
+            }
+            _cancelled = true;
+            sockets = _sockets.toArray(new DatagramSocket[_sockets.size()]);
+            exchanges = _exchanges.toArray(new SntpNioEngine.Exchange[_exchanges.size()]);
+            _sockets.clear();
+            _exchanges.clear();
+            notifyAll();
+        }
+
+        // outside the lock: failing an exchange calls back into its waiter
+        for (DatagramSocket socket : sockets) {
+            socket.close();
+        }
+        IOException cause = new InterruptedIOException("TrueTime sync cancelled");
+        for (SntpNioEngine.Exchange exchange : exchanges) {
+            exchange.abort(cause);
+        }
+    }
+}
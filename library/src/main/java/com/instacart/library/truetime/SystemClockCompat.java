@@ -0,0 +1,23 @@
+package com.instacart.library.truetime;
+
+import android.os.Build;
+import android.os.SystemClock;
+
+final class SystemClockCompat {
+
+    private SystemClockCompat() {
+    }
+
+    /**
+     * {@link SystemClock#elapsedRealtimeNanos()} is only available from API 17.
+     * Older devices fall back to millisecond ticks.
+     *
+     * @return nanoseconds since boot, including time spent in sleep
+     */
+    static long elapsedRealtimeNanos() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+        return SystemClock.elapsedRealtime() * 1_000_000L;
+    }
+}
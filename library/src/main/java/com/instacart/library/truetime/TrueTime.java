@@ -1,176 +1,305 @@
 package com.instacart.library.truetime;
 
 import android.content.Context;
-import android.os.SystemClock;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.util.Date;
-import java.util.Locale;
+import java.util.concurrent.Executor;
 
+/**
+ * Static façade over a default {@link TrueTimeClock}.
+ * Use {@link TrueTimeClock} directly for independently configured clocks.
+ */
 public class TrueTime {
 
-    private static final String TAG = TrueTime.class.getSimpleName();
-
+    private static final TrueTimeClock DEFAULT_CLOCK = new TrueTimeClock(null);
     private static final TrueTime INSTANCE = new TrueTime();
-    private static final DiskCacheClient DISK_CACHE_CLIENT = new DiskCacheClient();
-    private static final SntpClient SNTP_CLIENT = new SntpClient();
 
-    private static float _rootDelayMax = 100;
-    private static float _rootDispersionMax = 100;
-    private static int _serverResponseDelayMax = 750;
-    private static int _udpSocketTimeoutInMillis = 30_000;
+    private final TrueTimeClock _clock;
+
+    public TrueTime() {
+        this(DEFAULT_CLOCK);
+    }
 
-    private String _ntpHost = "1.us.pool.ntp.org";
+    TrueTime(TrueTimeClock clock) {
+        _clock = clock;
+    }
 
     /**
      * @return Date object that returns the current time in the default Timezone
      */
     public static Date now() {
-        if (!isInitialized()) {
-            throw new IllegalStateException("You need to call init() on TrueTime at least once.");
-        }
+        return DEFAULT_CLOCK.now();
+    }
 
-        long cachedSntpTime = _getCachedSntpTime();
-        long cachedDeviceUptime = _getCachedDeviceUptime();
-        long deviceUptime = SystemClock.elapsedRealtime();
-        long now = cachedSntpTime + (deviceUptime - cachedDeviceUptime);
+    /**
+     * Allocation free alternative to {@link #now()}, meant for hot paths
+     *
+     * @return current true time in milliseconds since epoch
+     */
+    public static long nowMillis() {
+        return DEFAULT_CLOCK.nowMillis();
+    }
+
+    /**
+     * Same as {@link #nowMillis()} but never throws
+     *
+     * @param defaultValue value returned if TrueTime hasn't been initialized yet
+     * @return current true time in milliseconds since epoch or defaultValue
+     */
+    public static long nowMillisOrDefault(long defaultValue) {
+        return DEFAULT_CLOCK.nowMillisOrDefault(defaultValue);
+    }
 
-        return new Date(now);
+    /**
+     * Nanosecond resolution true time, useful to order events recorded within the same millisecond.
+     * Resolution depends on the device: before API 17 ticks are only available in milliseconds.
+     *
+     * @return current true time in nanoseconds since epoch
+     */
+    public static long nowNanos() {
+        return DEFAULT_CLOCK.nowNanos();
+    }
+
+    /**
+     * @return current true time in microseconds since epoch
+     * @see #nowNanos()
+     */
+    public static long nowMicros() {
+        return DEFAULT_CLOCK.nowMicros();
+    }
+
+    /**
+     * @return interval the true time currently lies within
+     * @see #nowInterval(TrueTimeInterval)
+     */
+    public static TrueTimeInterval nowInterval() {
+        return DEFAULT_CLOCK.nowInterval();
+    }
+
+    /**
+     * Allocation free version of {@link #nowInterval()}.
+     *
+     * @see TrueTimeClock#nowInterval(TrueTimeInterval)
+     */
+    public static TrueTimeInterval nowInterval(TrueTimeInterval interval) {
+        return DEFAULT_CLOCK.nowInterval(interval);
     }
 
     public static boolean isInitialized() {
-        return SNTP_CLIENT.wasInitialized() || DISK_CACHE_CLIENT.isTrueTimeCachedFromAPreviousBoot();
+        return DEFAULT_CLOCK.isInitialized();
     }
 
     public static TrueTime build() {
         return INSTANCE;
     }
 
+    /**
+     * @return the clock backing the static methods of TrueTime
+     */
+    public static TrueTimeClock defaultClock() {
+        return DEFAULT_CLOCK;
+    }
+
     public void initialize() throws IOException {
-        initialize(_ntpHost);
+        _clock.initialize();
+    }
+
+    /**
+     * @see TrueTimeClock#sync()
+     */
+    public void sync() throws IOException {
+        _clock.sync();
+    }
+
+    /**
+     * @see TrueTimeClock#initializeAsync(Executor, long)
+     */
+    public TrueTimeFuture initializeAsync(Executor executor, long timeoutInMillis) {
+        return _clock.initializeAsync(executor, timeoutInMillis);
     }
 
     /**
      * Cache TrueTime initialization information in SharedPreferences
      * This can help avoid additional TrueTime initialization on app kills
      */
-    public synchronized TrueTime withSharedPreferencesCache(Context context) {
-        DISK_CACHE_CLIENT.enableCacheInterface(new SharedPreferenceCacheImpl(context));
-        return INSTANCE;
+    public TrueTime withSharedPreferencesCache(Context context) {
+        _clock.withSharedPreferencesCache(context);
+        return this;
     }
 
     /**
      * Customized TrueTime Cache implementation.
      */
-    public synchronized TrueTime withCustomizedCache(CacheInterface cacheInterface) {
-        DISK_CACHE_CLIENT.enableCacheInterface(cacheInterface);
-        return INSTANCE;
+    public TrueTime withCustomizedCache(CacheInterface cacheInterface) {
+        _clock.withCustomizedCache(cacheInterface);
+        return this;
     }
 
     /**
      * clear the cached TrueTime info on device reboot.
      */
     public static void clearCachedInfo() {
-        DISK_CACHE_CLIENT.clearCachedInfo();
+        DEFAULT_CLOCK.clearCachedInfo();
     }
 
-    public synchronized TrueTime withConnectionTimeout(int timeoutInMillis) {
-        _udpSocketTimeoutInMillis = timeoutInMillis;
-        return INSTANCE;
+    public TrueTime withConnectionTimeout(int timeoutInMillis) {
+        _clock.withConnectionTimeout(timeoutInMillis);
+        return this;
     }
 
-    public synchronized TrueTime withRootDelayMax(float rootDelayMax) {
-        if (rootDelayMax > _rootDelayMax) {
-          String log = String.format(Locale.getDefault(),
-              "The recommended max rootDelay value is %f. You are setting it at %f",
-              _rootDelayMax, rootDelayMax);
-          TrueLog.w(TAG, log);
-        }
+    /**
+     * @see TrueTimeClock#withAdaptiveTimeout(int, int)
+     */
+    public TrueTime withAdaptiveTimeout(int minTimeoutInMillis, int maxTimeoutInMillis) {
+        _clock.withAdaptiveTimeout(minTimeoutInMillis, maxTimeoutInMillis);
+        return this;
+    }
 
-        _rootDelayMax = rootDelayMax;
-        return INSTANCE;
+    public TrueTime withRootDelayMax(float rootDelayMax) {
+        _clock.withRootDelayMax(rootDelayMax);
+        return this;
     }
 
-    public synchronized TrueTime withRootDispersionMax(float rootDispersionMax) {
-      if (rootDispersionMax > _rootDispersionMax) {
-        String log = String.format(Locale.getDefault(),
-            "The recommended max rootDispersion value is %f. You are setting it at %f",
-            _rootDispersionMax, rootDispersionMax);
-        TrueLog.w(TAG, log);
-      }
+    public TrueTime withRootDispersionMax(float rootDispersionMax) {
+        _clock.withRootDispersionMax(rootDispersionMax);
+        return this;
+    }
 
-      _rootDispersionMax = rootDispersionMax;
-      return INSTANCE;
+    public TrueTime withServerResponseDelayMax(int serverResponseDelayInMillis) {
+        _clock.withServerResponseDelayMax(serverResponseDelayInMillis);
+        return this;
     }
 
-    public synchronized TrueTime withServerResponseDelayMax(int serverResponseDelayInMillis) {
-        _serverResponseDelayMax = serverResponseDelayInMillis;
-        return INSTANCE;
+    public TrueTime withNtpHost(String ntpHost) {
+        _clock.withNtpHost(ntpHost);
+        return this;
     }
 
-    public synchronized TrueTime withNtpHost(String ntpHost) {
-        _ntpHost = ntpHost;
-        return INSTANCE;
+    /**
+     * @see TrueTimeClock#withMonotonicMode(boolean)
+     */
+    public TrueTime withMonotonicMode(boolean monotonic) {
+        _clock.withMonotonicMode(monotonic);
+        return this;
     }
 
-    public synchronized TrueTime withLoggingEnabled(boolean isLoggingEnabled) {
-        TrueLog.setLoggingEnabled(isLoggingEnabled);
-        return INSTANCE;
+    /**
+     * @see TrueTimeClock#withSlewWindow(long)
+     */
+    public TrueTime withSlewWindow(long slewWindowInMillis) {
+        _clock.withSlewWindow(slewWindowInMillis);
+        return this;
     }
 
-    // -----------------------------------------------------------------------------------
+    /**
+     * @see TrueTimeClock#withNioEngine(boolean)
+     */
+    public TrueTime withNioEngine(boolean nioEngine) {
+        _clock.withNioEngine(nioEngine);
+        return this;
+    }
 
-    protected void initialize(String ntpHost) throws IOException {
-        if (isInitialized()) {
-            TrueLog.i(TAG, "---- TrueTime already initialized from previous boot/init");
-            return;
-        }
+    /**
+     * @see TrueTimeClock#withSocketPooling(boolean)
+     */
+    public TrueTime withSocketPooling(boolean socketPooling) {
+        _clock.withSocketPooling(socketPooling);
+        return this;
+    }
 
-        requestTime(ntpHost);
-        saveTrueTimeInfoToDisk();
+    /**
+     * @see TrueTimeClock#withBurst(int, int)
+     */
+    public TrueTime withBurst(int samples, int spacingInMillis) {
+        _clock.withBurst(samples, spacingInMillis);
+        return this;
     }
 
-    long[] requestTime(String ntpHost) throws IOException {
-        return SNTP_CLIENT.requestTime(ntpHost,
-            _rootDelayMax,
-            _rootDispersionMax,
-            _serverResponseDelayMax,
-            _udpSocketTimeoutInMillis);
+    /**
+     * @see TrueTimeClock#withRetryPolicy(RetryPolicy)
+     */
+    public TrueTime withRetryPolicy(RetryPolicy retryPolicy) {
+        _clock.withRetryPolicy(retryPolicy);
+        return this;
     }
 
-    synchronized static void saveTrueTimeInfoToDisk() {
-        if (!SNTP_CLIENT.wasInitialized()) {
-            TrueLog.i(TAG, "---- SNTP client not available. not caching TrueTime info in disk");
-            return;
-        }
-        DISK_CACHE_CLIENT.cacheTrueTimeInfo(SNTP_CLIENT);
+    /**
+     * @see TrueTimeClock#withSampling(int, int)
+     */
+    public TrueTime withSampling(int serverCount, int samplesPerServer) {
+        _clock.withSampling(serverCount, samplesPerServer);
+        return this;
     }
 
-    void cacheTrueTimeInfo(long[] response) {
-        SNTP_CLIENT.cacheTrueTimeInfo(response);
+    /**
+     * @see TrueTimeClock#withQuorum(int, long)
+     */
+    public TrueTime withQuorum(int quorum, long maxErrorInMillis) {
+        _clock.withQuorum(quorum, maxErrorInMillis);
+        return this;
     }
 
-    private static long _getCachedDeviceUptime() {
-        long cachedDeviceUptime = SNTP_CLIENT.wasInitialized()
-                                  ? SNTP_CLIENT.getCachedDeviceUptime()
-                                  : DISK_CACHE_CLIENT.getCachedDeviceUptime();
+    /**
+     * @see TrueTimeClock#withClockFilter(boolean)
+     */
+    public TrueTime withClockFilter(boolean clockFilter) {
+        _clock.withClockFilter(clockFilter);
+        return this;
+    }
 
-        if (cachedDeviceUptime == 0L) {
-            throw new RuntimeException("expected device time from last boot to be cached. couldn't find it.");
-        }
+    /**
+     * @see TrueTimeClock#withExecutor(Executor, int)
+     */
+    public TrueTime withExecutor(Executor executor, int parallelism) {
+        _clock.withExecutor(executor, parallelism);
+        return this;
+    }
+
+    /**
+     * @see TrueTimeClock#withHedging(boolean)
+     */
+    public TrueTime withHedging(boolean hedging) {
+        _clock.withHedging(hedging);
+        return this;
+    }
+
+    /**
+     * @see TrueTimeClock#withDnsCacheTtl(long)
+     */
+    public TrueTime withDnsCacheTtl(long ttlInMillis) {
+        _clock.withDnsCacheTtl(ttlInMillis);
+        return this;
+    }
+
+    public TrueTime withLoggingEnabled(boolean isLoggingEnabled) {
+        TrueLog.setLoggingEnabled(isLoggingEnabled);
+        return this;
+    }
+
+    // -----------------------------------------------------------------------------------
+
+    protected void initialize(String ntpHost) throws IOException {
+        _clock.initialize(ntpHost);
+    }
 
-        return cachedDeviceUptime;
+    TrueTimeClock clock() {
+        return _clock;
     }
 
-    private static long _getCachedSntpTime() {
-        long cachedSntpTime = SNTP_CLIENT.wasInitialized()
-                              ? SNTP_CLIENT.getCachedSntpTime()
-                              : DISK_CACHE_CLIENT.getCachedSntpTime();
+    long[] requestTime(String ntpHost) throws IOException {
+        return _clock.requestTime(ntpHost);
+    }
 
-        if (cachedSntpTime == 0L) {
-            throw new RuntimeException("expected SNTP time from last boot to be cached. couldn't find it.");
-        }
+    long[] requestTime(InetAddress address) throws IOException {
+        return _clock.requestTime(address);
+    }
 
-        return cachedSntpTime;
+    void saveTrueTimeInfoToDisk() {
+        _clock.saveTrueTimeInfoToDisk();
     }
 
+    void cacheTrueTimeInfo(long[] response) {
+        _clock.cacheTrueTimeInfo(response);
+    }
 }
@@ -0,0 +1,863 @@
+package com.instacart.library.truetime;
+
+import android.content.Context;
+import android.os.SystemClock;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An independent TrueTime clock, with its own configuration, cache and sync state.
+ *
+ * {@link TrueTime} is a static façade over a default instance. Create more instances when different
+ * parts of an app need different servers or tolerances:
+ *
+ * <pre>
+ * TrueTimeClock clock = new TrueTimeClock("payments")
+ *       .withNtpHost("time.google.com")
+ *       .withSharedPreferencesCache(context);
+ * clock.initialize();
+ * long now = clock.nowMillis();
+ * </pre>
+ *
+ * Reading the time never takes a lock; configuration is expected to be done before initializing.
+ */
+public class TrueTimeClock {
+
+    private static final String TAG = TrueTimeClock.class.getSimpleName();
+
+    /** hedge requests still waiting after this percentile of the server's recent round trip times */
+    private static final double HEDGE_PERCENTILE = 0.95;
+
+    /** hedge delay until a server's round trip times are known */
+    private static final long DEFAULT_HEDGE_DELAY_NANOS = 1_000_000_000L;
+
+    private final String _namespace;
+    private final DiskCacheClient _diskCacheClient = new DiskCacheClient();
+    private final SntpClient _sntpClient = new SntpClient();
+    private final ClockDriftEstimator _driftEstimator = new ClockDriftEstimator();
+    private final DnsCache _dnsCache = new DnsCache(_diskCacheClient);
+    private final RttHistory _rttHistory = new RttHistory();
+    private final SntpSyncEngine _syncEngine = new SntpSyncEngine(this);
+
+    private volatile float _rootDelayMax = 100;
+    private volatile float _rootDispersionMax = 100;
+    private volatile int _serverResponseDelayMax = 750;
+    private volatile int _udpSocketTimeoutInMillis = 30_000;
+    private volatile boolean _adaptiveTimeout = false;
+    private volatile int _minTimeoutInMillis = 200;
+    private volatile int _maxTimeoutInMillis = 30_000;
+    private volatile boolean _monotonic = false;
+    private volatile long _slewWindowInMillis = 60_000;
+    private volatile String _ntpHost = "1.us.pool.ntp.org";
+    private volatile boolean _nioEngine = false;
+    private volatile boolean _hedging = false;
+    private volatile SntpSocketPool _socketPool = null;
+    private volatile RetryPolicy _retryPolicy = null;
+    private volatile int _burstSamples = 1;
+    private volatile int _burstSpacingInMillis = 0;
+    private volatile int _serverCount = 1;
+    private volatile int _samplesPerServer = 1;
+    private volatile Executor _executor = null;
+    private volatile int _parallelism = 4;
+    private volatile ClockFilter _clockFilter = null;
+    private volatile int _quorum = 0;
+    private volatile long _quorumErrorNanos = 0L;
+
+    // last values handed out in monotonic mode
+    private final AtomicLong _lastNowMillis = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong _lastNowNanos = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @param namespace keeps the cached info of this clock apart from other clocks'.
+     *                  null uses the same cache entries as {@link TrueTime}
+     */
+    public TrueTimeClock(String namespace) {
+        _namespace = namespace;
+    }
+
+    /**
+     * @return Date object that returns the current time in the default Timezone
+     */
+    public Date now() {
+        return new Date(nowMillis());
+    }
+
+    /**
+     * Allocation free alternative to {@link #now()}, meant for hot paths
+     *
+     * @return current true time in milliseconds since epoch
+     */
+    public long nowMillis() {
+        TrueTimeSnapshot snapshot = getCachedSnapshot();
+        if (snapshot == null) {
+            throw new IllegalStateException("You need to call init() on TrueTime at least once.");
+        }
+
+        return monotonicMillis(snapshot.nowMillis(SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Same as {@link #nowMillis()} but never throws
+     *
+     * @param defaultValue value returned if TrueTime hasn't been initialized yet
+     * @return current true time in milliseconds since epoch or defaultValue
+     */
+    public long nowMillisOrDefault(long defaultValue) {
+        TrueTimeSnapshot snapshot = getCachedSnapshot();
+        if (snapshot == null) {
+            return defaultValue;
+        }
+
+        return monotonicMillis(snapshot.nowMillis(SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Nanosecond resolution true time, useful to order events recorded within the same millisecond.
+     * Resolution depends on the device: before API 17 ticks are only available in milliseconds.
+     *
+     * @return current true time in nanoseconds since epoch
+     */
+    public long nowNanos() {
+        TrueTimeSnapshot snapshot = getCachedSnapshot();
+        if (snapshot == null) {
+            throw new IllegalStateException("You need to call init() on TrueTime at least once.");
+        }
+
+        return monotonicNanos(snapshot.nowNanos(SystemClockCompat.elapsedRealtimeNanos()));
+    }
+
+    /**
+     * @return current true time in microseconds since epoch
+     * @see #nowNanos()
+     */
+    public long nowMicros() {
+        return nowNanos() / 1_000L;
+    }
+
+    /**
+     * @return interval the true time currently lies within
+     * @see #nowInterval(TrueTimeInterval)
+     */
+    public TrueTimeInterval nowInterval() {
+        return nowInterval(new TrueTimeInterval());
+    }
+
+    /**
+     * Allocation free version of {@link #nowInterval()}.
+     *
+     * Bounds are the synchronization distance of the last sync (round trip delay, root delay and
+     * root dispersion of the server) plus an error term that grows with the time elapsed since.
+     * Two events whose intervals don't overlap are guaranteed to be correctly ordered.
+     *
+     * @param interval instance to fill in
+     * @return interval, for chaining
+     */
+    public TrueTimeInterval nowInterval(TrueTimeInterval interval) {
+        TrueTimeSnapshot snapshot = getCachedSnapshot();
+        if (snapshot == null) {
+            throw new IllegalStateException("You need to call init() on TrueTime at least once.");
+        }
+
+        long deviceUptimeNanos = SystemClockCompat.elapsedRealtimeNanos();
+        long now = snapshot.nowNanos(deviceUptimeNanos);
+        long error = snapshot.errorNanos(deviceUptimeNanos);
+
+        interval.set((now - error) / 1_000_000L, (now + error + 999_999L) / 1_000_000L);
+        return interval;
+    }
+
+    public boolean isInitialized() {
+        return getCachedSnapshot() != null;
+    }
+
+    public void initialize() throws IOException {
+        initialize(_ntpHost);
+    }
+
+    public void initialize(String ntpHost) throws IOException {
+        if (isInitialized()) {
+            TrueLog.i(TAG, "---- TrueTime already initialized from previous boot/init");
+            return;
+        }
+
+        sync(resolveAll(ntpHost), _serverCount, _samplesPerServer, _retryPolicy);
+    }
+
+    /**
+     * Syncs again even if already initialized, for apps that resync periodically.
+     * See {@link #withClockFilter(boolean)} to make periodic syncs cheaper.
+     */
+    public void sync() throws IOException {
+        sync(resolveAll(_ntpHost), _serverCount, _samplesPerServer, _retryPolicy);
+    }
+
+    /**
+     * Non blocking {@link #initialize()}
+     *
+     * @see #initializeAsync(String, Executor, long)
+     */
+    public TrueTimeFuture initializeAsync(Executor executor, long timeoutInMillis) {
+        return initializeAsync(_ntpHost, executor, timeoutInMillis);
+    }
+
+    /**
+     * Non blocking {@link #initialize(String)}: resolving ntpHost and sampling its servers run on
+     * executor. The future is already done if TrueTime was initialized before.
+     *
+     * @param executor        overrides {@link #withExecutor(Executor, int)} for this initialization, may be null
+     * @param timeoutInMillis overall deadline, covering DNS, every sample and retries. 0 for none
+     */
+    public TrueTimeFuture initializeAsync(String ntpHost, Executor executor, long timeoutInMillis) {
+        if (isInitialized()) {
+            TrueLog.i(TAG, "---- TrueTime already initialized from previous boot/init");
+            TrueTimeFuture future = new TrueTimeFuture(new SyncToken());
+            future.succeed(now(), null);
+            return future;
+        }
+
+        return syncAsync(ntpHost, null, _serverCount, _samplesPerServer, _retryPolicy, executor, timeoutInMillis);
+    }
+
+    /**
+     * Cache TrueTime initialization information in SharedPreferences
+     * This can help avoid additional TrueTime initialization on app kills
+     */
+    public TrueTimeClock withSharedPreferencesCache(Context context) {
+        _diskCacheClient.enableCacheInterface(new SharedPreferenceCacheImpl(context, _namespace));
+        _driftEstimator.seed(_diskCacheClient.getCachedDriftRate());
+        return this;
+    }
+
+    /**
+     * Customized TrueTime Cache implementation.
+     * Entries are namespaced so several clocks can share the same cache.
+     */
+    public TrueTimeClock withCustomizedCache(CacheInterface cacheInterface) {
+        _diskCacheClient.enableCacheInterface(_namespace == null
+                                              ? cacheInterface
+                                              : new NamespacedCacheInterface(cacheInterface, _namespace));
+        _driftEstimator.seed(_diskCacheClient.getCachedDriftRate());
+        return this;
+    }
+
+    /**
+     * clear the cached TrueTime info on device reboot.
+     * {@link BootCompletedBroadcastReceiver} only does this for the default clock; the cache of
+     * other clocks is still discarded after a reboot as the cached device uptime is then ahead of the
+     * current one.
+     */
+    public void clearCachedInfo() {
+        _diskCacheClient.clearCachedInfo();
+    }
+
+    public TrueTimeClock withConnectionTimeout(int timeoutInMillis) {
+        _udpSocketTimeoutInMillis = timeoutInMillis;
+        return this;
+    }
+
+    /**
+     * Instead of {@link #withConnectionTimeout(int)} for every request, derive each request's timeout
+     * from the round trip times recently observed for that server: smoothed round trip time plus
+     * four times its deviation, as TCP does, doubled after every timeout. A server that hasn't
+     * answered yet gets 1s. Dead or distant servers are then given up on in hundreds of
+     * milliseconds instead of tens of seconds.
+     *
+     * @param minTimeoutInMillis lower bound of the timeout, covering jitter on a fast link
+     * @param maxTimeoutInMillis upper bound of the timeout
+     */
+    public TrueTimeClock withAdaptiveTimeout(int minTimeoutInMillis, int maxTimeoutInMillis) {
+        if (minTimeoutInMillis > maxTimeoutInMillis) {
+            throw new IllegalArgumentException("minTimeoutInMillis must not be greater than maxTimeoutInMillis");
+        }
+
+        _minTimeoutInMillis = minTimeoutInMillis;
+        _maxTimeoutInMillis = maxTimeoutInMillis;
+        _adaptiveTimeout = true;
+        return this;
+    }
+
+    public TrueTimeClock withRootDelayMax(float rootDelayMax) {
+        if (rootDelayMax > _rootDelayMax) {
+            String log = String.format(Locale.getDefault(),
+                "The recommended max rootDelay value is %f. You are setting it at %f",
+                _rootDelayMax, rootDelayMax);
+            TrueLog.w(TAG, log);
+        }
+
+        _rootDelayMax = rootDelayMax;
+        return this;
+    }
+
+    public TrueTimeClock withRootDispersionMax(float rootDispersionMax) {
+        if (rootDispersionMax > _rootDispersionMax) {
+            String log = String.format(Locale.getDefault(),
+                "The recommended max rootDispersion value is %f. You are setting it at %f",
+                _rootDispersionMax, rootDispersionMax);
+            TrueLog.w(TAG, log);
+        }
+
+        _rootDispersionMax = rootDispersionMax;
+        return this;
+    }
+
+    public TrueTimeClock withServerResponseDelayMax(int serverResponseDelayInMillis) {
+        _serverResponseDelayMax = serverResponseDelayInMillis;
+        return this;
+    }
+
+    public TrueTimeClock withNtpHost(String ntpHost) {
+        _ntpHost = ntpHost;
+        return this;
+    }
+
+    /**
+     * In monotonic mode a new sync never makes time jump. Instead TrueTime slews (speeds up or slows
+     * down) towards the new offset over {@link #withSlewWindow(long)}, and values returned by
+     * {@link #now()} and friends are guaranteed to never decrease within a boot.
+     *
+     * Across process restarts this relies on the cache ({@link #withSharedPreferencesCache(Context)}
+     * or {@link #withCustomizedCache(CacheInterface)}): the slewing state is persisted with each sync,
+     * so a restarted process resumes the exact time line it left. Without a cache the guarantee only
+     * holds for the lifetime of the process.
+     */
+    public TrueTimeClock withMonotonicMode(boolean monotonic) {
+        _monotonic = monotonic;
+        return this;
+    }
+
+    /**
+     * Time taken to converge to a new offset in monotonic mode. The window is stretched when needed
+     * so that time runs at no less than half speed while slewing backwards.
+     */
+    public TrueTimeClock withSlewWindow(long slewWindowInMillis) {
+        _slewWindowInMillis = slewWindowInMillis;
+        return this;
+    }
+
+    /**
+     * Run SNTP exchanges on the shared non-blocking engine: a single selector thread multiplexes
+     * every request instead of a thread blocking on a socket per request.
+     * See {@link SntpNioEngine}
+     */
+    public TrueTimeClock withNioEngine(boolean nioEngine) {
+        _nioEngine = nioEngine;
+        return this;
+    }
+
+    /**
+     * Keep sockets and buffers open per server and reuse them across requests. Recommended when
+     * syncing continuously: once warm, an SNTP exchange doesn't allocate or open file descriptors.
+     * Disabling closes the pooled sockets.
+     */
+    public synchronized TrueTimeClock withSocketPooling(boolean socketPooling) {
+        if (socketPooling && _socketPool == null) {
+            _socketPool = new SntpSocketPool();
+        } else if (!socketPooling && _socketPool != null) {
+            _socketPool.clear();
+            _socketPool = null;
+        }
+        return this;
+    }
+
+    /**
+     * Burst mode, similar to ntpd's iburst: each request to a server sends samples packets in a
+     * tight burst on one socket and keeps the response with the lowest round trip delay. Sampling a
+     * server then takes about one round trip plus spacing instead of one round trip per sample.
+     *
+     * Bursts use their own socket, they take precedence over {@link #withSocketPooling(boolean)},
+     * {@link #withNioEngine(boolean)} and {@link #withHedging(boolean)}.
+     *
+     * @param samples         packets per burst, 1 to disable bursts. At most 8, what a server's
+     *                        poll interval allows back to back
+     * @param spacingInMillis delay between two packets of a burst
+     */
+    public TrueTimeClock withBurst(int samples, int spacingInMillis) {
+        if (samples < 1) {
+            throw new IllegalArgumentException("a burst needs at least one sample");
+        }
+        if (samples > ServerRateLimiter.BURST_PACKETS) {
+            throw new IllegalArgumentException("a burst can't send more than " + ServerRateLimiter.BURST_PACKETS +
+                                               " packets to a server");
+        }
+
+        _burstSamples = samples;
+        _burstSpacingInMillis = spacingInMillis;
+        return this;
+    }
+
+    /**
+     * Retry failed requests as decided by retryPolicy, see {@link BackoffRetryPolicy}.
+     * By default {@link #initialize()} doesn't retry.
+     */
+    public TrueTimeClock withRetryPolicy(RetryPolicy retryPolicy) {
+        _retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * How many servers {@link #initialize()} samples and how many times. Each server's sample with
+     * the lowest round trip delay is kept, then servers disagreeing with the majority are discarded,
+     * see {@link ClockSelection}. Servers are the addresses the NTP host resolves to; those that fail
+     * are replaced by the next ones.
+     *
+     * By default a single server is sampled once. Requests to a server, retries included, are paced
+     * to its minimum poll interval after the first 8: once a server is at its rate, its sampling
+     * stops with the samples it has.
+     *
+     * @param serverCount      servers whose samples are combined
+     * @param samplesPerServer requests sent to each server, see also {@link #withBurst(int, int)}
+     */
+    public TrueTimeClock withSampling(int serverCount, int samplesPerServer) {
+        if (serverCount < 1 || samplesPerServer < 1) {
+            throw new IllegalArgumentException("at least one server must be sampled at least once");
+        }
+
+        _serverCount = serverCount;
+        _samplesPerServer = samplesPerServer;
+        return this;
+    }
+
+    /**
+     * Complete a sync as soon as quorum servers are truechimers (see {@link ClockSelection}) whose
+     * intersection interval is within ± maxErrorInMillis, instead of waiting for every server of
+     * {@link #withSampling(int, int)} to answer all its samples. Selection runs as every sample
+     * lands; once the quorum is reached the requests still in flight are cancelled.
+     *
+     * @param quorum 0 to always wait for every server
+     */
+    public TrueTimeClock withQuorum(int quorum, long maxErrorInMillis) {
+        if (quorum < 0) {
+            throw new IllegalArgumentException("quorum must not be negative");
+        }
+
+        _quorum = quorum;
+        _quorumErrorNanos = maxErrorInMillis * 1_000_000L;
+        return this;
+    }
+
+    /**
+     * Keep the last 8 samples of every server across syncs and select among them (RFC 5905 clock
+     * filter): the sample with the lowest round trip delay wins, older samples count less as they
+     * age, and the spread of the samples widens the server's correctness interval.
+     *
+     * Once a server has answered a few times, each {@link #sync()} sends it a single request
+     * instead of the samplesPerServer of {@link #withSampling(int, int)}.
+     */
+    public synchronized TrueTimeClock withClockFilter(boolean clockFilter) {
+        if (clockFilter && _clockFilter == null) {
+            _clockFilter = new ClockFilter();
+        } else if (!clockFilter) {
+            _clockFilter = null;
+        }
+        return this;
+    }
+
+    /**
+     * Executor servers are sampled on during {@link #initialize()}, at most parallelism at a time.
+     * The caller of initialize() still blocks until the sync is done.
+     * By default daemon threads are created as needed.
+     */
+    public TrueTimeClock withExecutor(Executor executor, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+
+        _executor = executor;
+        _parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Hedge SNTP requests: when a response takes longer than most recent ones from that server, a
+     * duplicate request is sent to the same server and the first valid response wins. A lost packet
+     * then costs about one round trip rather than the connection timeout. Only requests slower than
+     * the 95th percentile are duplicated.
+     *
+     * Hedged requests run on the NIO engine, see {@link #withNioEngine(boolean)}
+     */
+    public TrueTimeClock withHedging(boolean hedging) {
+        _hedging = hedging;
+        return this;
+    }
+
+    /**
+     * How long resolved NTP host names are reused before querying DNS again. The last good answer is
+     * also persisted with the cache, so a cold start can send its first packets without waiting on DNS.
+     */
+    public TrueTimeClock withDnsCacheTtl(long ttlInMillis) {
+        _dnsCache.setTtl(ttlInMillis);
+        return this;
+    }
+
+    // -----------------------------------------------------------------------------------
+
+    /**
+     * @return every address ntpHost resolves to, see {@link DnsCache}
+     */
+    InetAddress[] resolveAll(String ntpHost) throws IOException {
+        return _dnsCache.resolveAll(ntpHost);
+    }
+
+    RetryPolicy getRetryPolicy() {
+        return _retryPolicy;
+    }
+
+    /**
+     * Samples addresses with {@link SntpSyncEngine} then caches and persists the selected response
+     *
+     * @param retryPolicy applied to every request, may be null
+     * @return the selected response
+     */
+    long[] sync(InetAddress[] addresses, int serverCount, int samplesPerServer, RetryPolicy retryPolicy)
+          throws IOException {
+        long[] response = _syncEngine.sync(addresses,
+            serverCount,
+            samplesPerServer,
+            retryPolicy,
+            executor(null),
+            _parallelism);
+
+        cacheTrueTimeInfo(response);
+        saveTrueTimeInfoToDisk();
+        return response;
+    }
+
+    /**
+     * Non blocking {@link #sync(InetAddress[], int, int, RetryPolicy)}
+     *
+     * @param addresses       servers to sample, null to resolve ntpHost on executor
+     * @param executor        may be null for the configured one
+     * @param timeoutInMillis overall deadline, 0 for none
+     */
+    TrueTimeFuture syncAsync(final String ntpHost,
+                             final InetAddress[] addresses,
+                             final int serverCount,
+                             final int samplesPerServer,
+                             final RetryPolicy retryPolicy,
+                             Executor executor,
+                             long timeoutInMillis) {
+
+        final SyncToken token = new SyncToken();
+        final TrueTimeFuture future = new TrueTimeFuture(token);
+        final Executor syncExecutor = executor(executor);
+
+        if (timeoutInMillis > 0) {
+            future.timeoutAfter(timeoutInMillis);
+        }
+
+        final SntpResponseListener listener = new SntpResponseListener() {
+            @Override
+            public void onResponse(long[] response) {
+                if (!future.claim()) {
+                    // cancelled, timed out or failed first: the caller already gave up on this sync
+                    return;
+                }
+                try {
+                    cacheTrueTimeInfo(response);
+                    saveTrueTimeInfoToDisk();
+                } catch (RuntimeException e) {
+                    TrueLog.e(TAG, "---- caching TrueTime info failed", e);
+                    future.abort(new IOException("caching TrueTime info failed: " + e));
+                    return;
+                }
+                future.succeed(now(), response);
+            }
+
+            @Override
+            public void onFailure(IOException e) {
+                future.fail(e);
+            }
+        };
+
+        try {
+            syncExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // DNS can't be interrupted, the future still completes on time
+                        InetAddress[] servers = addresses != null ? addresses : resolveAll(ntpHost);
+                        token.check();
+                        _syncEngine.start(servers,
+                            serverCount,
+                            samplesPerServer,
+                            retryPolicy,
+                            syncExecutor,
+                            _parallelism,
+                            token,
+                            listener);
+                    } catch (IOException e) {
+                        future.fail(e);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            TrueLog.e(TAG, "---- executor rejected TrueTime sync", e);
+            future.fail(new IOException("executor rejected TrueTime sync: " + e));
+        }
+
+        return future;
+    }
+
+    /**
+     * {@link #requestTime(InetAddress, InetAddress, SyncToken)}, retried according to retryPolicy
+     *
+     * @param retryPolicy may be null to not retry
+     * @param token       stops retrying when the sync is cancelled
+     * @param t           array of {@link SntpClient#RESPONSE_INDEX_SIZE} the response is written to
+     * @return t
+     */
+    long[] requestTimeWithRetries(InetAddress address,
+        RetryPolicy retryPolicy,
+        SyncToken token,
+        long[] t
+    )
+          throws IOException {
+        for (int retryCount = 0; ; retryCount++) {
+            token.check();
+            try {
+                return requestTime(address, token, t);
+            } catch (KissOfDeathException e) {
+                // whatever the policy: waiting out a poll interval would stall the sync, the next server is sampled instead
+                throw e;
+            } catch (IOException e) {
+                token.check();
+                long delay = retryPolicy == null ? RetryPolicy.STOP : retryPolicy.retryDelayMillis(retryCount, e);
+                if (delay < 0) {
+                    throw e;
+                }
+
+                TrueLog.d(TAG, "---- retrying " + address + " in " + delay + "ms after: " + e.getMessage());
+                token.sleep(delay);
+            }
+        }
+    }
+
+    long[] requestTime(String ntpHost) throws IOException {
+        InetAddress[] addresses = _dnsCache.resolveAll(ntpHost);
+        return requestTime(addresses[0]);
+    }
+
+    long[] requestTime(InetAddress address) throws IOException {
+        return requestTime(address, null, new long[SntpClient.RESPONSE_INDEX_SIZE]);
+    }
+
+    /**
+     * @param token releases the request when the sync is cancelled, may be null
+     * @param t     array of {@link SntpClient#RESPONSE_INDEX_SIZE} the response is written to, so a
+     *              sync can reuse its arrays across requests
+     * @return t
+     */
+    long[] requestTime(InetAddress address, SyncToken token, long[] t) throws IOException {
+        if (_burstSamples > 1) {
+            return copy(requestTimeBurst(address, token), t);
+        }
+
+        if (_hedging) {
+            // hedged to the same server: whichever request is answered, the response is address's
+            return copy(requestTimeOnNioEngine(address, address, token), t);
+        }
+
+        if (_nioEngine) {
+            return copy(requestTimeOnNioEngine(address, null, token), t);
+        }
+
+        long[] response;
+        try {
+            SntpSocketPool socketPool = _socketPool;
+            if (socketPool != null) {
+                response = _sntpClient.requestTime(socketPool,
+                    address,
+                    _rootDelayMax,
+                    _rootDispersionMax,
+                    _serverResponseDelayMax,
+                    timeoutInMillis(address),
+                    token,
+                    t);
+            } else {
+                response = copy(_sntpClient.requestTime(address,
+                    _rootDelayMax,
+                    _rootDispersionMax,
+                    _serverResponseDelayMax,
+                    timeoutInMillis(address),
+                    token), t);
+            }
+        } catch (SocketTimeoutException e) {
+            _rttHistory.backoff(address);
+            throw e;
+        }
+
+        _rttHistory.record(address, response[SntpClient.RESPONSE_INDEX_ROUND_TRIP_DELAY_NANOS]);
+        return response;
+    }
+
+    /**
+     * Sends a request on the NIO engine without blocking, see {@link #withNioEngine(boolean)}
+     */
+    SntpNioEngine.Exchange requestTime(InetAddress address, SntpResponseListener listener) throws IOException {
+        return SntpNioEngine.shared().requestTime(address,
+            _hedging ? address : null,
+            hedgeDelayNanos(address),
+            _rttHistory,
+            _rootDelayMax,
+            _rootDispersionMax,
+            _serverResponseDelayMax,
+            timeoutInMillis(address),
+            listener);
+    }
+
+    /**
+     * @return true if requests run on the NIO engine, see {@link #requestTime(InetAddress, SntpResponseListener)}
+     */
+    boolean isNioEngineEnabled() {
+        return _nioEngine || _hedging;
+    }
+
+    /**
+     * @return true if a single {@link #requestTime(InetAddress)} already samples the server several times
+     */
+    boolean isBurstEnabled() {
+        return _burstSamples > 1;
+    }
+
+    /**
+     * @return the clock filter, null unless {@link #withClockFilter(boolean)}
+     */
+    ClockFilter getClockFilter() {
+        return _clockFilter;
+    }
+
+    /**
+     * @return servers that must agree to complete a sync early, 0 if disabled. See {@link #withQuorum(int, long)}
+     */
+    int getQuorum() {
+        return _quorum;
+    }
+
+    long getQuorumErrorNanos() {
+        return _quorumErrorNanos;
+    }
+
+    synchronized void saveTrueTimeInfoToDisk() {
+        TrueTimeSnapshot snapshot = _sntpClient.getCachedSnapshot();
+        if (snapshot == null) {
+            TrueLog.i(TAG, "---- SNTP client not available. not caching TrueTime info in disk");
+            return;
+        }
+        _diskCacheClient.cacheTrueTimeInfo(snapshot);
+    }
+
+    void cacheTrueTimeInfo(long[] response) {
+        long deviceUptimeNanos = response[SntpClient.RESPONSE_INDEX_RESPONSE_TICKS_NANOS];
+        TrueTimeSnapshot current = _sntpClient.getCachedSnapshot();
+        if (current != null && deviceUptimeNanos <= current.deviceUptimeNanos) {
+            // e.g. the clock filter kept an older sample: nothing new for the drift estimate either
+            TrueLog.d(TAG, "---- sync selected a sample that was already cached");
+            return;
+        }
+
+        double driftRate = _driftEstimator.addSyncPoint(deviceUptimeNanos,
+                                                        _sntpClient.sntpTimeNanos(response) - deviceUptimeNanos);
+        TrueTimeSnapshot snapshot = _sntpClient.toSnapshot(response, driftRate);
+
+        if (_monotonic) {
+            _sntpClient.cacheTrueTimeInfo(snapshot, _diskCacheClient.getCachedSnapshot(), _slewWindowInMillis);
+        } else {
+            _sntpClient.cacheTrueTimeInfo(snapshot, null, 0L);
+        }
+    }
+
+    private long[] requestTimeBurst(InetAddress address, SyncToken token) throws IOException {
+        long[][] samples = new long[_burstSamples][SntpClient.RESPONSE_INDEX_SIZE];
+        long[] response;
+        try {
+            response = _sntpClient.requestTimeBurst(address,
+                samples,
+                _burstSpacingInMillis,
+                _rootDelayMax,
+                _rootDispersionMax,
+                _serverResponseDelayMax,
+                timeoutInMillis(address),
+                token);
+        } catch (SocketTimeoutException e) {
+            _rttHistory.backoff(address);
+            throw e;
+        }
+
+        _rttHistory.record(address, response[SntpClient.RESPONSE_INDEX_ROUND_TRIP_DELAY_NANOS]);
+        return response;
+    }
+
+    /**
+     * Request on the NIO engine, hedged unless hedgeAddress is null
+     */
+    private long[] requestTimeOnNioEngine(InetAddress address, InetAddress hedgeAddress, SyncToken token)
+          throws IOException {
+        return SntpNioEngine.shared().requestTime(address,
+            hedgeAddress,
+            hedgeDelayNanos(address),
+            _rttHistory,
+            _rootDelayMax,
+            _rootDispersionMax,
+            _serverResponseDelayMax,
+            timeoutInMillis(address),
+            token);
+    }
+
+    private static long[] copy(long[] response, long[] t) {
+        System.arraycopy(response, 0, t, 0, SntpClient.RESPONSE_INDEX_SIZE);
+        return t;
+    }
+
+    private Executor executor(Executor executor) {
+        if (executor != null) {
+            return executor;
+        }
+        executor = _executor;
+        return executor != null ? executor : SntpSyncEngine.defaultExecutor();
+    }
+
+    private int timeoutInMillis(InetAddress address) {
+        if (!_adaptiveTimeout) {
+            return _udpSocketTimeoutInMillis;
+        }
+        return (int) _rttHistory.timeoutMillis(address, _minTimeoutInMillis, _maxTimeoutInMillis);
+    }
+
+    private long hedgeDelayNanos(InetAddress address) {
+        return _rttHistory.percentileNanos(address, HEDGE_PERCENTILE, DEFAULT_HEDGE_DELAY_NANOS);
+    }
+
+    private TrueTimeSnapshot getCachedSnapshot() {
+        TrueTimeSnapshot snapshot = _sntpClient.getCachedSnapshot();
+        return snapshot != null ? snapshot : _diskCacheClient.getCachedSnapshot();
+    }
+
+    private long monotonicMillis(long now) {
+        return _monotonic ? highWaterMark(_lastNowMillis, now) : now;
+    }
+
+    private long monotonicNanos(long now) {
+        return _monotonic ? highWaterMark(_lastNowNanos, now) : now;
+    }
+
+    /**
+     * Slewing keeps the time line itself non-decreasing; this covers readers racing with
+     * a sync being published and rounding, without ever blocking.
+     */
+    private static long highWaterMark(AtomicLong last, long now) {
+        while (true) {
+            long lastNow = last.get();
+            if (now <= lastNow) {
+                return lastNow;
+            }
+            if (last.compareAndSet(lastNow, now)) {
+                return now;
+            }
+        }
+    }
+}
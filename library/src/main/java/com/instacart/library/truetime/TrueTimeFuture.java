@@ -0,0 +1,242 @@
+package com.instacart.library.truetime;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pending result of {@link TrueTimeClock#initializeAsync(java.util.concurrent.Executor, long)}.
+ *
+ * Cancelling closes the sockets still waiting for a response and stops retries, so the threads of the
+ * sync are released right away. The same happens when the initialization times out, it then fails
+ * with a {@link SocketTimeoutException}.
+ */
+public final class TrueTimeFuture
+      implements Future<Date> {
+
+    /**
+     * Notified once the initialization is done, on the thread that completed it
+     */
+    public interface Callback {
+
+        void onInitialized(Date now);
+
+        /**
+         * @param e {@link IOException} if the sync failed or timed out,
+         *          {@link CancellationException} if it was cancelled
+         */
+        void onFailure(Exception e);
+    }
+
+    private static final int RUNNING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+    /** claimed by the sync's result, see {@link #claim()}: can't be cancelled, fail or time out anymore */
+    private static final int COMPLETING = 4;
+
+    private final SyncToken _token;
+
+    // guarded by this
+    private int _state = RUNNING;
+    private Date _now = null;
+    private long[] _response = null;
+    private IOException _failure = null;
+    private ScheduledFuture<?> _timeout = null;
+    private ArrayList<Callback> _callbacks = new ArrayList<>();
+
+    TrueTimeFuture(SyncToken token) {
+        _token = token;
+    }
+
+    /**
+     * @param callback called right away, on this thread, if the initialization is already done
+     */
+    public void addCallback(Callback callback) {
+        synchronized (this) {
+            if (!isDone()) {
+                _callbacks.add(callback);
+                return;
+            }
+        }
+        dispatch(callback);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(false, CANCELLED, null, null, null);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return _state == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return _state != RUNNING && _state != COMPLETING;
+    }
+
+    /**
+     * @throws ExecutionException caused by an {@link IOException} if the sync failed or timed out
+     */
+    @Override
+    public synchronized Date get() throws InterruptedException, ExecutionException {
+        while (!isDone()) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized Date get(long timeout, TimeUnit unit)
+          throws InterruptedException, ExecutionException, TimeoutException {
+        long until = System.nanoTime() + unit.toNanos(timeout);
+        long remainingNanos;
+        while (!isDone()) {
+            remainingNanos = until - System.nanoTime();
+            if (remainingNanos <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+        }
+        return result();
+    }
+
+    /**
+     * @return the response the clock was initialized with, see RESPONSE_INDEX_ in {@link SntpClient}.
+     * Null until then, or if TrueTime was already initialized
+     */
+    public synchronized long[] getResponse() {
+        return _response;
+    }
+
+    // -----------------------------------------------------------------------------------
+
+    /**
+     * Fails with a {@link SocketTimeoutException} if still running after timeoutInMillis
+     */
+    void timeoutAfter(final long timeoutInMillis) {
+        ScheduledFuture<?> timeout = SntpSyncEngine.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fail(new SocketTimeoutException("TrueTime initialization timed out after " + timeoutInMillis + "ms"));
+            }
+        }, timeoutInMillis);
+
+        synchronized (this) {
+            if (!isDone()) {
+                _timeout = timeout;
+                return;
+            }
+        }
+        timeout.cancel(false);
+    }
+
+    /**
+     * Reserves the completion of a running future for a sync result about to be published: from now
+     * on cancelling, failing or timing out has no effect, only {@link #succeed(Date, long[])} or
+     * {@link #abort(IOException)} complete it. Publishing after checking {@link #isDone()} instead
+     * would race with a cancellation.
+     *
+     * @return false if the future is already completing or done, the result must then be dropped
+     */
+    synchronized boolean claim() {
+        if (_state != RUNNING) {
+            return false;
+        }
+        _state = COMPLETING;
+        return true;
+    }
+
+    /**
+     * Completes a running or claimed future
+     */
+    boolean succeed(Date now, long[] response) {
+        return complete(true, SUCCEEDED, now, response, null);
+    }
+
+    /**
+     * Completes a running future, has no effect once claimed
+     */
+    boolean fail(IOException e) {
+        return complete(false, FAILED, null, null, e);
+    }
+
+    /**
+     * Fails a claimed future whose result couldn't be published
+     */
+    boolean abort(IOException e) {
+        synchronized (this) {
+            if (_state != COMPLETING) {
+                return false;
+            }
+        }
+        return complete(true, FAILED, null, null, e);
+    }
+
+    /**
+     * @param claimed true if a future claimed by {@link #claim()} can be completed
+     */
+    private boolean complete(boolean claimed, int state, Date now, long[] response, IOException failure) {
+        ScheduledFuture<?> timeout;
+        ArrayList<Callback> callbacks;
+        synchronized (this) {
+            if (_state != RUNNING && !(claimed && _state == COMPLETING)) {
+                return false;
+            }
+            _state = state;
+            _now = now;
+            _response = response;
+            _failure = failure;
+            timeout = _timeout;
+            callbacks = _callbacks;
+            _timeout = null;
+            _callbacks = null;
+            notifyAll();
+        }
+
+        // whatever the outcome, nothing of the sync is needed anymore
+        _token.cancel();
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        for (Callback callback : callbacks) {
+            dispatch(callback);
+        }
+        return true;
+    }
+
+    private void dispatch(Callback callback) {
+        Date now;
+        Exception failure;
+        synchronized (this) {
+            now = _now;
+            failure = _state == CANCELLED ? new CancellationException() : _failure;
+        }
+
+        if (failure == null) {
+            callback.onInitialized(now);
+        } else {
+            callback.onFailure(failure);
+        }
+    }
+
+    private Date result() throws ExecutionException {
+        switch (_state) {
+            case SUCCEEDED:
+                return _now;
+            case CANCELLED:
+                throw new CancellationException();
+            default:
+                throw new ExecutionException(_failure);
+        }
+    }
+}
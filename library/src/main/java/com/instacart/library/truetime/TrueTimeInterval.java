@@ -0,0 +1,55 @@
+package com.instacart.library.truetime;
+
+/**
+ * Bounds (in milliseconds since epoch) within which the true time is guaranteed to lie.
+ *
+ * Instances are mutable so hot paths can reuse one with {@link TrueTime#nowInterval(TrueTimeInterval)}
+ * and not allocate.
+ */
+public final class TrueTimeInterval {
+
+    private long _earliest;
+    private long _latest;
+
+    public TrueTimeInterval() {
+    }
+
+    public long getEarliest() {
+        return _earliest;
+    }
+
+    public long getLatest() {
+        return _latest;
+    }
+
+    /**
+     * @return true if this interval certainly happened before the other one
+     */
+    public boolean isBefore(TrueTimeInterval other) {
+        return _latest < other._earliest;
+    }
+
+    /**
+     * @return true if this interval certainly happened after the other one
+     */
+    public boolean isAfter(TrueTimeInterval other) {
+        return _earliest > other._latest;
+    }
+
+    /**
+     * @return true if the ordering of the two intervals can't be determined
+     */
+    public boolean overlaps(TrueTimeInterval other) {
+        return !isBefore(other) && !isAfter(other);
+    }
+
+    void set(long earliest, long latest) {
+        _earliest = earliest;
+        _latest = latest;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + _earliest + ", " + _latest + "]";
+    }
+}
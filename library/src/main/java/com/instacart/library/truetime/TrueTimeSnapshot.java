@@ -0,0 +1,211 @@
+package com.instacart.library.truetime;
+
+/**
+ * Immutable result of a single TrueTime sync.
+ *
+ * A new instance is published (via a single volatile write) every time a sync completes so readers
+ * only ever need one load to get a consistent view of the sync information.
+ */
+final class TrueTimeSnapshot {
+
+    /**
+     * Frequency tolerance assumed for the device oscillator, 15 PPM as in RFC 5905.
+     * The error bound grows by this much per unit of time elapsed since the sync.
+     */
+    static final double FREQUENCY_TOLERANCE = 15e-6;
+
+    /** used when the root distance of a sync isn't known: MAXDIST from RFC 5905 (1.5s) */
+    static final long UNKNOWN_ROOT_DISTANCE_NANOS = 1_500_000_000L;
+
+    /** SNTP time (milliseconds since epoch) at the moment the response was received */
+    final long sntpTime;
+
+    /** device uptime ({@link android.os.SystemClock#elapsedRealtime()}) when the response was received */
+    final long deviceUptime;
+
+    /** SNTP time in nanoseconds since epoch at the moment the response was received */
+    final long sntpTimeNanos;
+
+    /** device uptime ({@link android.os.SystemClock#elapsedRealtimeNanos()}) when the response was received */
+    final long deviceUptimeNanos;
+
+    /** round trip delay of the response this snapshot was computed from (lower is better) */
+    final long roundTripDelay;
+
+    /**
+     * Synchronization distance at the moment of the sync: maximum error of {@link #sntpTimeNanos},
+     * accounting for our round trip delay and the server's root delay and dispersion
+     */
+    final long rootDistanceNanos;
+
+    /**
+     * Estimated frequency error of the device oscillator: true time advances by (1 + driftRate)
+     * per unit of device uptime. See {@link ClockDriftEstimator}
+     */
+    final double driftRate;
+
+    // -----------------------------------------------------------------------------------
+    // slewing (monotonic mode)
+    // the correction between the previous time line and this one shrinks linearly to 0
+    // between slewStartUptime and slewStartUptime + slewWindow
+
+    private final long _slewStartUptimeNanos;
+    private final long _slewWindowNanos;
+    private final long _slewCorrectionNanos;
+
+    TrueTimeSnapshot(long sntpTime, long deviceUptime, long roundTripDelay) {
+        this(sntpTime,
+             deviceUptime,
+             sntpTime * 1_000_000L,
+             deviceUptime * 1_000_000L,
+             roundTripDelay,
+             UNKNOWN_ROOT_DISTANCE_NANOS,
+             0D);
+    }
+
+    TrueTimeSnapshot(long sntpTime,
+                     long deviceUptime,
+                     long sntpTimeNanos,
+                     long deviceUptimeNanos,
+                     long roundTripDelay,
+                     long rootDistanceNanos,
+                     double driftRate) {
+        this(sntpTime,
+             deviceUptime,
+             sntpTimeNanos,
+             deviceUptimeNanos,
+             roundTripDelay,
+             rootDistanceNanos,
+             driftRate,
+             0L,
+             0L,
+             0L);
+    }
+
+    /**
+     * @param slewStartUptimeNanos device uptime slewing started at, see {@link #slewTowards(TrueTimeSnapshot, long, long)}
+     * @param slewWindowNanos      time taken to converge, 0 if not slewing
+     * @param slewCorrectionNanos  difference with the previous time line when slewing started
+     */
+    TrueTimeSnapshot(long sntpTime,
+                     long deviceUptime,
+                     long sntpTimeNanos,
+                     long deviceUptimeNanos,
+                     long roundTripDelay,
+                     long rootDistanceNanos,
+                     double driftRate,
+                     long slewStartUptimeNanos,
+                     long slewWindowNanos,
+                     long slewCorrectionNanos) {
+        this.sntpTime = sntpTime;
+        this.deviceUptime = deviceUptime;
+        this.sntpTimeNanos = sntpTimeNanos;
+        this.deviceUptimeNanos = deviceUptimeNanos;
+        this.roundTripDelay = roundTripDelay;
+        this.rootDistanceNanos = rootDistanceNanos;
+        this.driftRate = driftRate;
+        _slewStartUptimeNanos = slewStartUptimeNanos;
+        _slewWindowNanos = slewWindowNanos;
+        _slewCorrectionNanos = slewCorrectionNanos;
+    }
+
+    /**
+     * @param deviceUptime current device uptime
+     * @return true time in milliseconds extrapolated from this sync
+     */
+    long nowMillis(long deviceUptime) {
+        long elapsed = deviceUptime - this.deviceUptime;
+        long now = sntpTime + elapsed;
+        if (driftRate != 0D) {
+            now += (long) (elapsed * driftRate);
+        }
+        if (_slewWindowNanos == 0L) {
+            return now;
+        }
+        return now + slewCorrectionNanos(deviceUptime * 1_000_000L) / 1_000_000L;
+    }
+
+    /**
+     * @param deviceUptimeNanos current device uptime in nanoseconds
+     * @return true time in nanoseconds extrapolated from this sync
+     */
+    long nowNanos(long deviceUptimeNanos) {
+        long elapsed = deviceUptimeNanos - this.deviceUptimeNanos;
+        long now = sntpTimeNanos + elapsed;
+        if (driftRate != 0D) {
+            now += (long) (elapsed * driftRate);
+        }
+        if (_slewWindowNanos == 0L) {
+            return now;
+        }
+        return now + slewCorrectionNanos(deviceUptimeNanos);
+    }
+
+    /**
+     * Maximum error of {@link #nowNanos(long)}: the synchronization distance plus the worst case
+     * oscillator drift since the sync plus whatever slew correction hasn't been applied yet.
+     *
+     * @param deviceUptimeNanos current device uptime in nanoseconds
+     */
+    long errorNanos(long deviceUptimeNanos) {
+        long sinceSync = Math.max(0L, deviceUptimeNanos - this.deviceUptimeNanos);
+        long error = rootDistanceNanos + (long) (sinceSync * FREQUENCY_TOLERANCE);
+        if (_slewWindowNanos == 0L) {
+            return error;
+        }
+        return error + Math.abs(slewCorrectionNanos(deviceUptimeNanos));
+    }
+
+    /**
+     * Instead of jumping to the time line of {@code target}, returns a snapshot that starts where this
+     * one currently is and gradually converges to {@code target}.
+     *
+     * The window is stretched if needed so that the clock never runs at less than half speed
+     * while catching up with a smaller offset, i.e. time never goes backwards.
+     *
+     * @param target snapshot computed from the latest sync
+     * @param slewWindowInMillis time taken to fully converge to target
+     * @param deviceUptimeNanos current device uptime in nanoseconds; slewing starts here
+     */
+    TrueTimeSnapshot slewTowards(TrueTimeSnapshot target, long slewWindowInMillis, long deviceUptimeNanos) {
+        long correctionNanos = nowNanos(deviceUptimeNanos) - target.nowNanos(deviceUptimeNanos);
+        if (correctionNanos == 0L) {
+            return target;
+        }
+
+        long slewWindowNanos = Math.max(slewWindowInMillis * 1_000_000L, 2 * correctionNanos);
+        return new TrueTimeSnapshot(target.sntpTime,
+                                    target.deviceUptime,
+                                    target.sntpTimeNanos,
+                                    target.deviceUptimeNanos,
+                                    target.roundTripDelay,
+                                    target.rootDistanceNanos,
+                                    target.driftRate,
+                                    deviceUptimeNanos,
+                                    slewWindowNanos,
+                                    correctionNanos);
+    }
+
+    long getSlewStartUptimeNanos() {
+        return _slewStartUptimeNanos;
+    }
+
+    long getSlewWindowNanos() {
+        return _slewWindowNanos;
+    }
+
+    long getSlewCorrectionNanos() {
+        return _slewCorrectionNanos;
+    }
+
+    private long slewCorrectionNanos(long deviceUptimeNanos) {
+        long elapsed = deviceUptimeNanos - _slewStartUptimeNanos;
+        if (elapsed <= 0L) {
+            return _slewCorrectionNanos;
+        }
+        if (elapsed >= _slewWindowNanos) {
+            return 0L;
+        }
+        return (long) (_slewCorrectionNanos * ((double) (_slewWindowNanos - elapsed) / _slewWindowNanos));
+    }
+}
@@ -0,0 +1,67 @@
+package com.instacart.library.truetime;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BackoffRetryPolicyTest {
+
+    private static final int DRAWS = 1_000;
+
+    @Test
+    public void delayIsDrawnOverTheWholeCeiling() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(10, 100L, 10_000L);
+
+        for (int retry = 0; retry < 6; retry++) {
+            long ceiling = 100L << retry;
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < DRAWS; i++) {
+                long delay = policy.retryDelayMillis(retry, new SocketTimeoutException());
+                min = Math.min(min, delay);
+                max = Math.max(max, delay);
+            }
+
+            assertTrue("retry " + retry + " waited " + min, min >= 0L);
+            assertTrue("retry " + retry + " waited " + max, max <= ceiling);
+            // full jitter, not base * 2^n plus a little noise
+            assertTrue("retry " + retry + " never waited less than " + min, min < ceiling / 4);
+            assertTrue("retry " + retry + " never waited more than " + max, max > ceiling * 3 / 4);
+        }
+    }
+
+    @Test
+    public void delayIsCapped() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(100, 250L, 1_000L);
+
+        // 40 and 63 would overflow an uncapped shift
+        for (int retry : new int[]{3, 10, 40, 63}) {
+            for (int i = 0; i < DRAWS; i++) {
+                long delay = policy.retryDelayMillis(retry, new SocketTimeoutException());
+                assertTrue("retry " + retry + " waited " + delay, delay >= 0L && delay <= 1_000L);
+            }
+        }
+    }
+
+    @Test
+    public void stopsAfterMaxRetries() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(3);
+
+        assertTrue(policy.retryDelayMillis(2, new SocketTimeoutException()) >= 0L);
+        assertEquals(RetryPolicy.STOP, policy.retryDelayMillis(3, new SocketTimeoutException()));
+        assertEquals(RetryPolicy.STOP, new BackoffRetryPolicy(0).retryDelayMillis(0, new IOException()));
+    }
+
+    @Test
+    public void invalidResponseIsNotRetried() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(50);
+
+        assertEquals(RetryPolicy.STOP,
+                     policy.retryDelayMillis(0, new InvalidNtpServerResponseException("untrusted stratum")));
+        assertEquals(RetryPolicy.STOP,
+                     policy.retryDelayMillis(0, new KissOfDeathException("rate limited", "RATE")));
+    }
+}
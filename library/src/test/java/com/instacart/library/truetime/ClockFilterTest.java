@@ -0,0 +1,73 @@
+package com.instacart.library.truetime;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClockFilterTest {
+
+    @Test
+    public void samplesAreFiledUnderTheServerThatSentThem() throws UnknownHostException {
+        InetAddress answering = InetAddress.getByAddress(new byte[]{(byte) 192, 0, 2, 1});
+        InetAddress other = InetAddress.getByAddress(new byte[]{(byte) 192, 0, 2, 2});
+        ClockFilter filter = new ClockFilter();
+        long[] selected = new long[SntpClient.RESPONSE_INDEX_SIZE];
+
+        for (int i = 0; i < ClockFilter.WARM_STAGES; i++) {
+            filter.add(sample(answering, i, 1_000_000L, 10_000_000L), selected);
+        }
+
+        assertTrue(filter.isWarm(answering));
+        assertFalse(filter.isWarm(other));
+    }
+
+    @Test
+    public void selectsLowestRoundTripDelay() throws UnknownHostException {
+        InetAddress server = InetAddress.getByAddress(new byte[]{(byte) 192, 0, 2, 1});
+        ClockFilter filter = new ClockFilter();
+        long[] selected = new long[SntpClient.RESPONSE_INDEX_SIZE];
+
+        filter.add(sample(server, 0, 3_000_000L, 30_000_000L), selected);
+        filter.add(sample(server, 1, 1_000_000L, 10_000_000L), selected);
+        filter.add(sample(server, 2, 2_000_000L, 20_000_000L), selected);
+
+        assertEquals(1_000_000L, SntpClient.getClockOffsetNanos(selected));
+        assertEquals(10_000_000L, SntpClient.getRoundTripDelayNanos(selected));
+        // widened by the server's dispersion and jitter
+        assertTrue(SntpClient.getClockOffsetLowNanos(selected) < 1_000_000L - 5_000_000L);
+    }
+
+    @Test
+    public void addCopiesTheResponse() throws UnknownHostException {
+        InetAddress server = InetAddress.getByAddress(new byte[]{(byte) 192, 0, 2, 1});
+        ClockFilter filter = new ClockFilter();
+        long[] response = sample(server, 0, 1_000_000L, 10_000_000L);
+        long[] selected = new long[SntpClient.RESPONSE_INDEX_SIZE];
+        filter.add(response, selected);
+
+        // the caller reuses its array for a worse sample
+        long[] worse = sample(server, 1, 9_000_000L, 90_000_000L);
+        System.arraycopy(worse, 0, response, 0, response.length);
+        filter.add(response, selected);
+
+        assertEquals(1_000_000L, SntpClient.getClockOffsetNanos(selected));
+    }
+
+    /**
+     * @param second uptime the sample was taken at, in seconds
+     */
+    private static long[] sample(InetAddress server, int second, long offsetNanos, long roundTripDelayNanos) {
+        long[] t = new long[SntpClient.RESPONSE_INDEX_SIZE];
+        t[SntpClient.RESPONSE_INDEX_RESPONSE_TICKS_NANOS] = second * 1_000_000_000L;
+        t[SntpClient.RESPONSE_INDEX_CLOCK_OFFSET_NANOS] = offsetNanos;
+        t[SntpClient.RESPONSE_INDEX_ROUND_TRIP_DELAY_NANOS] = roundTripDelayNanos;
+        t[SntpClient.RESPONSE_INDEX_OFFSET_LOW_NANOS] = offsetNanos - roundTripDelayNanos / 2;
+        t[SntpClient.RESPONSE_INDEX_OFFSET_HIGH_NANOS] = offsetNanos + roundTripDelayNanos / 2;
+        t[SntpClient.RESPONSE_INDEX_SERVER_ID] = SntpClient.serverId(server);
+        return t;
+    }
+}
@@ -0,0 +1,141 @@
+package com.instacart.library.truetime;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ClockSelectionTest {
+
+    @Test
+    public void everyServerAgrees() throws InvalidNtpServerResponseException {
+        SampleBuffer samples = samples(new long[]{-5L, 0L, 5L},
+                                       new long[]{-2L, 1L, 4L},
+                                       new long[]{-3L, 2L, 7L});
+
+        assertIntersection(samples, 3, -2L, 4L);
+        assertSelected(samples, 1L, -2L, 4L);
+    }
+
+    @Test
+    public void falsetickerAmongThreeIsDiscarded() throws InvalidNtpServerResponseException {
+        SampleBuffer samples = samples(new long[]{-5L, 0L, 5L},
+                                       new long[]{95L, 100L, 105L},
+                                       new long[]{-4L, 1L, 6L});
+
+        assertIntersection(samples, 2, -4L, 5L);
+        // the falseticker's interval is no wider, it's discarded for being off
+        assertSelected(samples, 0L, -4L, 5L);
+    }
+
+    @Test
+    public void falsetickerAmongFiveIsDiscarded() throws InvalidNtpServerResponseException {
+        SampleBuffer samples = samples(new long[]{-10L, 0L, 10L},
+                                       new long[]{-8L, 2L, 12L},
+                                       new long[]{-501L, -500L, -499L},
+                                       new long[]{-9L, 1L, 11L},
+                                       new long[]{-6L, 3L, 12L});
+
+        assertIntersection(samples, 4, -6L, 10L);
+        // the narrowest interval is the falseticker's, the narrowest truechimer is picked
+        assertSelected(samples, 3L, -6L, 10L);
+    }
+
+    @Test
+    public void twoDisagreeingServersHaveNoMajority() {
+        assertNoMajority(samples(new long[]{-5L, 0L, 5L},
+                                 new long[]{95L, 100L, 105L}));
+    }
+
+    @Test
+    public void evenSplitHasNoMajority() {
+        assertNoMajority(samples(new long[]{-5L, 0L, 5L},
+                                 new long[]{-4L, 1L, 6L},
+                                 new long[]{95L, 100L, 105L},
+                                 new long[]{96L, 101L, 106L}));
+    }
+
+    @Test
+    public void touchingIntervalsOverlap() throws InvalidNtpServerResponseException {
+        // low <= high rather than RFC 5905's low < high: a single shared point is an intersection
+        SampleBuffer samples = samples(new long[]{0L, 10L, 10L},
+                                       new long[]{10L, 10L, 20L},
+                                       new long[]{5L, 10L, 15L});
+
+        assertIntersection(samples, 3, 10L, 10L);
+        assertSelected(samples, 10L, 10L, 10L);
+    }
+
+    @Test
+    public void intervalAwayFromZeroIsntPulledTowardsTheSeed() throws InvalidNtpServerResponseException {
+        // low and high start at 0 rather than ±infinity: every bound still comes from a server
+        SampleBuffer samples = samples(new long[]{-300L, -250L, -200L},
+                                       new long[]{-280L, -240L, -210L},
+                                       new long[]{-260L, -230L, -190L});
+
+        assertIntersection(samples, 3, -260L, -210L);
+
+        samples = samples(new long[]{200L, 250L, 300L});
+        assertIntersection(samples, 1, 200L, 300L);
+        assertSelected(samples, 250L, 200L, 300L);
+    }
+
+    @Test
+    public void noSamplesHaveNoMajority() {
+        assertNoMajority(new SampleBuffer(3));
+    }
+
+    @Test
+    public void selectReturnsCopy() throws InvalidNtpServerResponseException {
+        SampleBuffer samples = samples(new long[]{-5L, 0L, 5L},
+                                       new long[]{-2L, 1L, 4L});
+
+        ClockSelection.select(samples)[SntpClient.RESPONSE_INDEX_CLOCK_OFFSET_NANOS] = 42L;
+
+        assertEquals(1L, SntpClient.getClockOffsetNanos(samples.response(1)));
+        assertEquals(-2L, samples.response(1)[SntpClient.RESPONSE_INDEX_OFFSET_LOW_NANOS]);
+    }
+
+    private static void assertIntersection(SampleBuffer samples, int survivors, long low, long high) {
+        long[] interval = new long[2];
+        assertEquals(survivors, ClockSelection.intersect(samples, interval));
+        assertArrayEquals(new long[]{low, high}, interval);
+    }
+
+    private static void assertSelected(SampleBuffer samples, long offset, long low, long high)
+          throws InvalidNtpServerResponseException {
+        long[] response = ClockSelection.select(samples);
+        assertEquals(offset, SntpClient.getClockOffsetNanos(response));
+        assertEquals(low, response[SntpClient.RESPONSE_INDEX_OFFSET_LOW_NANOS]);
+        assertEquals(high, response[SntpClient.RESPONSE_INDEX_OFFSET_HIGH_NANOS]);
+    }
+
+    private static void assertNoMajority(SampleBuffer samples) {
+        long[] interval = {42L, 42L};
+        assertEquals(0, ClockSelection.intersect(samples, interval));
+        // left as it was
+        assertArrayEquals(new long[]{42L, 42L}, interval);
+
+        try {
+            ClockSelection.select(samples);
+            fail("selected a response without a majority");
+        } catch (InvalidNtpServerResponseException expected) {
+        }
+    }
+
+    /**
+     * @param intervals low bound, offset and high bound of every server
+     */
+    private static SampleBuffer samples(long[]... intervals) {
+        SampleBuffer samples = new SampleBuffer(intervals.length);
+        for (int i = 0; i < intervals.length; i++) {
+            long[] response = new long[SntpClient.RESPONSE_INDEX_SIZE];
+            response[SntpClient.RESPONSE_INDEX_OFFSET_LOW_NANOS] = intervals[i][0];
+            response[SntpClient.RESPONSE_INDEX_CLOCK_OFFSET_NANOS] = intervals[i][1];
+            response[SntpClient.RESPONSE_INDEX_OFFSET_HIGH_NANOS] = intervals[i][2];
+            samples.put(i, response);
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,158 @@
+package com.instacart.library.truetime;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Requests to a local stub server that answers every request after SERVER_DELAY_MILLIS.
+ * If requests were serialised, REQUESTS of them would take REQUESTS times as long as one.
+ */
+public class ConcurrentRequestTimeTest {
+
+    private static final long OFFSET_1900_TO_1970 = 2_208_988_800L;
+
+    private static final long SERVER_DELAY_MILLIS = 200L;
+    // within the rate limiter's burst, so none of them are refused
+    private static final int REQUESTS = 8;
+
+    private DatagramSocket _serverSocket;
+    private ScheduledExecutorService _replies;
+    private Thread _server;
+
+    @Before
+    public void startServer() throws SocketException {
+        _serverSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        _replies = Executors.newScheduledThreadPool(REQUESTS);
+        _server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        });
+        _server.start();
+    }
+
+    @After
+    public void stopServer() throws InterruptedException {
+        _serverSocket.close();
+        _replies.shutdownNow();
+        _server.join();
+    }
+
+    @Test(timeout = 10_000L)
+    public void requestsToStubServerOverlap() throws InterruptedException {
+        final SntpClient client = new SntpClient();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger responses = new AtomicInteger();
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+
+        Thread[] threads = new Thread[REQUESTS];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    try {
+                        client.requestTime(InetAddress.getLoopbackAddress(),
+                                           _serverSocket.getLocalPort(),
+                                           100f,
+                                           100f,
+                                           1_000,
+                                           5_000,
+                                           null);
+                        responses.incrementAndGet();
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000L;
+
+        assertNull(failure.get());
+        assertEquals(REQUESTS, responses.get());
+        assertTrue("requests took " + elapsedMillis + "ms", elapsedMillis < REQUESTS * SERVER_DELAY_MILLIS / 2);
+    }
+
+    private void serve() {
+        while (true) {
+            final byte[] packet = new byte[SntpClient.NTP_PACKET_SIZE];
+            final DatagramPacket request = new DatagramPacket(packet, packet.length);
+            try {
+                _serverSocket.receive(request);
+            } catch (IOException e) {
+                return; // closed
+            }
+
+            _replies.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    reply(request);
+                }
+            }, SERVER_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Answers as a stratum 1 server, echoing the request's transmit timestamp
+     */
+    private void reply(DatagramPacket request) {
+        byte[] packet = request.getData();
+        long serverTime = System.currentTimeMillis();
+        System.arraycopy(packet, 40, packet, 24, 8);
+        packet[0] = 0x24; // no leap warning, version 4, server mode
+        packet[1] = 1;
+        writeTimeStamp(packet, 32, serverTime);
+        writeTimeStamp(packet, 40, serverTime);
+        try {
+            _serverSocket.send(new DatagramPacket(packet, packet.length, request.getSocketAddress()));
+        } catch (IOException ignored) {
+            // closed, the test is over
+        }
+    }
+
+    private static void writeTimeStamp(byte[] packet, int offset, long time) {
+        long seconds = (time / 1_000L + OFFSET_1900_TO_1970) & 0xFFFFFFFFL;
+        long fraction = time % 1_000L * 0x100000000L / 1_000L;
+        writeInt(packet, offset, seconds);
+        writeInt(packet, offset + 4, fraction);
+    }
+
+    private static void writeInt(byte[] packet, int offset, long value) {
+        packet[offset] = (byte) (value >> 24);
+        packet[offset + 1] = (byte) (value >> 16);
+        packet[offset + 2] = (byte) (value >> 8);
+        packet[offset + 3] = (byte) value;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
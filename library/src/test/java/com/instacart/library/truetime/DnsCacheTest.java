@@ -0,0 +1,166 @@
+package com.instacart.library.truetime;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class DnsCacheTest {
+
+    private static final String HOST = "time.example.com";
+
+    @Test
+    public void answerIsReusedWithinTtl() throws UnknownHostException {
+        FakeDnsCache cache = new FakeDnsCache(new DiskCacheClient());
+        cache.answer = addresses(1);
+
+        InetAddress[] first = cache.resolveAll(HOST);
+        cache.now = DnsCache.DEFAULT_TTL_IN_MILLIS - 1L;
+        assertSame(first, cache.resolveAll(HOST));
+        assertEquals(1, cache.queries.get());
+
+        cache.answer = addresses(2);
+        cache.now = DnsCache.DEFAULT_TTL_IN_MILLIS;
+        assertArrayEquals(addresses(2), cache.resolveAll(HOST));
+        assertEquals(2, cache.queries.get());
+    }
+
+    @Test(timeout = 5_000L)
+    public void persistedAnswerIsServedWhileRefreshing() throws UnknownHostException, InterruptedException {
+        DiskCacheClient diskCacheClient = new DiskCacheClient();
+        diskCacheClient.enableCacheInterface(new MemoryCache());
+        diskCacheClient.cacheNtpAddresses(HOST, addresses(1));
+
+        FakeDnsCache cache = new FakeDnsCache(diskCacheClient);
+        cache.answer = addresses(2);
+        cache.gate = new CountDownLatch(1);
+
+        // cold start: no waiting on DNS, and the refresh in flight isn't duplicated
+        assertArrayEquals(addresses(1), cache.resolveAll(HOST));
+        assertArrayEquals(addresses(1), cache.resolveAll(HOST));
+
+        cache.gate.countDown();
+        while (!cache.resolveAll(HOST)[0].equals(addresses(2)[0])) {
+            Thread.sleep(1L);
+        }
+        assertEquals(1, cache.queries.get());
+        // and the fresh answer replaced the persisted one
+        assertArrayEquals(addresses(2), diskCacheClient.getCachedNtpAddresses(HOST));
+    }
+
+    @Test
+    public void staleAnswerIsKeptWhenLookupFails() throws UnknownHostException {
+        FakeDnsCache cache = new FakeDnsCache(new DiskCacheClient());
+        cache.answer = addresses(1);
+        cache.resolveAll(HOST);
+
+        cache.answer = null;
+        cache.now = DnsCache.DEFAULT_TTL_IN_MILLIS;
+        assertArrayEquals(addresses(1), cache.resolveAll(HOST));
+        assertEquals(2, cache.queries.get());
+
+        // kept for the negative TTL before DNS is tried again
+        cache.now += DnsCache.NEGATIVE_TTL_IN_MILLIS - 1L;
+        assertArrayEquals(addresses(1), cache.resolveAll(HOST));
+        assertEquals(2, cache.queries.get());
+
+        cache.now += 1L;
+        assertArrayEquals(addresses(1), cache.resolveAll(HOST));
+        assertEquals(3, cache.queries.get());
+    }
+
+    @Test
+    public void failureIsRememberedForNegativeTtl() throws UnknownHostException {
+        FakeDnsCache cache = new FakeDnsCache(new DiskCacheClient());
+
+        assertUnknownHost(cache);
+        cache.now = DnsCache.NEGATIVE_TTL_IN_MILLIS - 1L;
+        assertUnknownHost(cache);
+        assertEquals(1, cache.queries.get());
+
+        cache.answer = addresses(1);
+        cache.now = DnsCache.NEGATIVE_TTL_IN_MILLIS;
+        assertArrayEquals(addresses(1), cache.resolveAll(HOST));
+        assertEquals(2, cache.queries.get());
+    }
+
+    private static void assertUnknownHost(DnsCache cache) {
+        try {
+            cache.resolveAll(HOST);
+            fail("resolved " + HOST);
+        } catch (UnknownHostException expected) {
+        }
+    }
+
+    private static InetAddress[] addresses(int lastOctet) throws UnknownHostException {
+        return new InetAddress[]{
+              InetAddress.getByAddress(HOST, new byte[]{10, 0, 0, (byte) lastOctet}),
+              InetAddress.getByAddress(HOST, new byte[]{10, 0, 1, (byte) lastOctet})
+        };
+    }
+
+    /**
+     * Answers with answer, or fails if it's null, at the time set in now
+     */
+    private static final class FakeDnsCache extends DnsCache {
+
+        final AtomicInteger queries = new AtomicInteger();
+        volatile InetAddress[] answer;
+        volatile CountDownLatch gate;
+        volatile long now;
+
+        FakeDnsCache(DiskCacheClient diskCacheClient) {
+            super(diskCacheClient);
+        }
+
+        @Override
+        long elapsedRealtime() {
+            return now;
+        }
+
+        @Override
+        InetAddress[] query(String host) throws UnknownHostException {
+            queries.incrementAndGet();
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            if (answer == null) {
+                throw new UnknownHostException(host);
+            }
+            return answer;
+        }
+    }
+
+    private static final class MemoryCache implements CacheInterface {
+
+        private final Map<String, Long> _values = new HashMap<>();
+
+        @Override
+        public synchronized void put(String key, long value) {
+            _values.put(key, value);
+        }
+
+        @Override
+        public synchronized long get(String key, long defaultValue) {
+            Long value = _values.get(key);
+            return value != null ? value : defaultValue;
+        }
+
+        @Override
+        public synchronized void clear() {
+            _values.clear();
+        }
+    }
+}
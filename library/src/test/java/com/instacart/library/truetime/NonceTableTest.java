@@ -0,0 +1,94 @@
+package com.instacart.library.truetime;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NonceTableTest {
+
+    @Test
+    public void putGetRemove() {
+        NonceTable<String> table = new NonceTable<>(4);
+
+        table.put(42L, "a");
+        table.put(-7L, "b");
+
+        assertEquals("a", table.get(42L));
+        assertEquals("b", table.get(-7L));
+        assertNull(table.get(43L));
+        assertEquals(2, table.size());
+
+        assertEquals("a", table.remove(42L));
+        assertFalse(table.containsKey(42L));
+        assertTrue(table.containsKey(-7L));
+        assertNull(table.remove(42L));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void putReplacesValueOfSameKey() {
+        NonceTable<String> table = new NonceTable<>(4);
+
+        table.put(42L, "a");
+        table.put(42L, "b");
+
+        assertEquals("b", table.get(42L));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void growsPastExpectedSize() {
+        NonceTable<Long> table = new NonceTable<>(2);
+
+        for (long key = 0; key < 1_000; key++) {
+            table.put(key << 32, key);
+        }
+
+        assertEquals(1_000, table.size());
+        for (long key = 0; key < 1_000; key++) {
+            assertEquals(Long.valueOf(key), table.get(key << 32));
+        }
+    }
+
+    @Test
+    public void clearRemovesEverything() {
+        NonceTable<String> table = new NonceTable<>(4);
+        table.put(1L, "a");
+        table.put(2L, "b");
+
+        table.clear();
+
+        assertEquals(0, table.size());
+        assertNull(table.get(1L));
+        assertNull(table.get(2L));
+    }
+
+    @Test
+    public void matchesMapUnderChurn() {
+        // a small table kept near half full: probes wrap around its end and removals shift entries back
+        NonceTable<Long> table = new NonceTable<>(8);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(2036L);
+
+        for (int i = 0; i < 100_000; i++) {
+            long key = random.nextInt(24);
+            if (random.nextBoolean()) {
+                table.put(key, (long) i);
+                expected.put(key, (long) i);
+            } else {
+                assertEquals(expected.remove(key), table.remove(key));
+            }
+
+            assertEquals(expected.size(), table.size());
+            for (long k = 0; k < 24; k++) {
+                assertEquals(expected.get(k), table.get(k));
+            }
+        }
+    }
+}
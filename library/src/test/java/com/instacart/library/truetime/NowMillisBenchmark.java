@@ -0,0 +1,56 @@
+package com.instacart.library.truetime;
+
+/**
+ * Cost of reading the true time: {@link TrueTimeClock#nowMillis()} against {@link TrueTimeClock#now()},
+ * which allocates a Date on every call.
+ *
+ * A plain main(), as JMH doesn't run with the Android library plugin: run it on the unit test
+ * classpath, e.g. from the IDE. It isn't a test, so the test task doesn't run it.
+ */
+public final class NowMillisBenchmark {
+
+    private static final int WARMUP_READS = 5_000_000;
+    private static final int MEASURED_READS = 20_000_000;
+
+    private NowMillisBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        TrueTimeClock clock = new TrueTimeClock("benchmark");
+        clock.cacheTrueTimeInfo(response());
+
+        run(clock, false, WARMUP_READS);
+        run(clock, true, WARMUP_READS);
+        double millis = run(clock, false, MEASURED_READS);
+        double date = run(clock, true, MEASURED_READS);
+
+        System.out.printf("%6.1f ns per nowMillis(), %6.1f ns per now()%n", millis, date);
+    }
+
+    /**
+     * @return ns per read
+     */
+    private static double run(TrueTimeClock clock, boolean date, int reads) {
+        long sink = 0L;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            sink += date ? clock.now().getTime() : clock.nowMillis();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if (sink == 42L) {
+            System.out.println();
+        }
+        return elapsed / (double) reads;
+    }
+
+    private static long[] response() {
+        long[] t = new long[SntpClient.RESPONSE_INDEX_SIZE];
+        t[SntpClient.RESPONSE_INDEX_RESPONSE_TIME_NANOS] = System.currentTimeMillis() * 1_000_000L;
+        t[SntpClient.RESPONSE_INDEX_CLOCK_OFFSET_NANOS] = 1_000_000L;
+        t[SntpClient.RESPONSE_INDEX_RESPONSE_TICKS] = 1L;
+        t[SntpClient.RESPONSE_INDEX_RESPONSE_TICKS_NANOS] = 1_000_000L;
+        return t;
+    }
+}
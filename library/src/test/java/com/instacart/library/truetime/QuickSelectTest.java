@@ -0,0 +1,76 @@
+package com.instacart.library.truetime;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuickSelectTest {
+
+    @Test
+    public void selectsKthSmallestLong() {
+        Random random = new Random(4330L);
+        for (int n = 1; n <= 40; n++) {
+            for (int round = 0; round < 20; round++) {
+                long[] values = new long[n + 3];
+                for (int i = 0; i < values.length; i++) {
+                    // few distinct values, so duplicates are common
+                    values[i] = random.nextInt(10) - 5;
+                }
+                long[] sorted = Arrays.copyOf(values, n);
+                Arrays.sort(sorted);
+
+                int k = random.nextInt(n);
+                assertEquals(sorted[k], QuickSelect.select(values, n, k));
+                for (int i = 0; i < k; i++) {
+                    assertTrue(values[i] <= values[k]);
+                }
+                for (int i = k + 1; i < n; i++) {
+                    assertTrue(values[i] >= values[k]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void selectsKthSmallestDouble() {
+        Random random = new Random(4330L);
+        for (int n = 1; n <= 40; n++) {
+            double[] values = new double[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = random.nextGaussian();
+            }
+            double[] sorted = values.clone();
+            Arrays.sort(sorted);
+
+            int k = n / 2;
+            assertEquals(sorted[k], QuickSelect.select(values, n, k), 0D);
+        }
+    }
+
+    @Test
+    public void sortedAndReversedInput() {
+        long[] ascending = new long[101];
+        long[] descending = new long[101];
+        for (int i = 0; i < ascending.length; i++) {
+            ascending[i] = i;
+            descending[i] = ascending.length - 1 - i;
+        }
+
+        assertEquals(50L, QuickSelect.select(ascending, ascending.length, 50));
+        assertEquals(50L, QuickSelect.select(descending, descending.length, 50));
+        assertEquals(0L, QuickSelect.select(descending, descending.length, 0));
+        assertEquals(100L, QuickSelect.select(ascending, ascending.length, 100));
+    }
+
+    @Test
+    public void ignoresValuesPastCount() {
+        long[] values = {3L, 1L, 2L, -100L, -200L};
+
+        assertEquals(1L, QuickSelect.select(values, 3, 0));
+        assertEquals(-100L, values[3]);
+        assertEquals(-200L, values[4]);
+    }
+}
@@ -0,0 +1,145 @@
+package com.instacart.library.truetime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cost of selecting again after every sample of a sync: {@link SampleBuffer} keeping its columns
+ * sorted as samples are put in, against copying and sorting the columns before every intersection,
+ * and against what TrueTimeRx used to do: a {@code List<long[]>} of samples per server sorted by
+ * round trip delay, then the servers' best samples sorted by offset for the median.
+ *
+ * A plain main(), as JMH doesn't run with the Android library plugin: run it on the unit test
+ * classpath, e.g. from the IDE. It isn't a test, so the test task doesn't run it.
+ */
+public final class SampleBufferBenchmark {
+
+    private static final int SAMPLES_PER_SERVER = 4;
+    private static final int WARMUP_SYNCS = 20_000;
+    private static final int MEASURED_SYNCS = 50_000;
+
+    private static final int INCREMENTAL = 0;
+    private static final int RESORTED = 1;
+    private static final int LISTS = 2;
+
+    private SampleBufferBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        for (int servers : new int[]{4, 8, 16, 32}) {
+            long[][] responses = responses(servers * SAMPLES_PER_SERVER);
+
+            for (int mode = INCREMENTAL; mode <= LISTS; mode++) {
+                run(servers, responses, mode, WARMUP_SYNCS);
+            }
+            double incremental = run(servers, responses, INCREMENTAL, MEASURED_SYNCS);
+            double resorted = run(servers, responses, RESORTED, MEASURED_SYNCS);
+            double lists = run(servers, responses, LISTS, MEASURED_SYNCS);
+
+            System.out.printf("%2d servers: %8.1f ns per sample kept sorted, %8.1f ns sorted per selection, " +
+                              "%8.1f ns with sorted lists%n",
+                              servers, incremental, resorted, lists);
+        }
+    }
+
+    /**
+     * @return ns per sample put and selected from
+     */
+    private static double run(int servers, long[][] responses, int mode, int syncs) {
+        long[] interval = new long[2];
+        long[] sortedOffsets = new long[servers];
+        long[] sortedLows = new long[servers];
+        long[] sortedHighs = new long[servers];
+        long sink = 0L;
+
+        long start = System.nanoTime();
+        for (int sync = 0; sync < syncs; sync++) {
+            if (mode == LISTS) {
+                List<List<long[]>> samples = new ArrayList<>();
+                for (int server = 0; server < servers; server++) {
+                    samples.add(new ArrayList<long[]>());
+                }
+                for (int i = 0; i < responses.length; i++) {
+                    samples.get(i % servers).add(responses[i]);
+                    sink += SntpClient.getClockOffset(median(samples));
+                }
+                continue;
+            }
+
+            SampleBuffer samples = new SampleBuffer(servers);
+            for (int i = 0; i < responses.length; i++) {
+                samples.put(i % servers, responses[i]);
+                if (mode == RESORTED) {
+                    // what every intersection cost before the columns were kept sorted
+                    int count = samples.size();
+                    for (int row = 0; row < count; row++) {
+                        sortedOffsets[row] = samples.offset(row);
+                        sortedLows[row] = samples.low(row);
+                        sortedHighs[row] = samples.high(row);
+                    }
+                    Arrays.sort(sortedOffsets, 0, count);
+                    Arrays.sort(sortedLows, 0, count);
+                    Arrays.sort(sortedHighs, 0, count);
+                    sink += sortedOffsets[0] + sortedLows[0] + sortedHighs[0];
+                }
+                sink += ClockSelection.intersect(samples, interval);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if (sink == 42L) {
+            System.out.println();
+        }
+        return elapsed / (double) syncs / responses.length;
+    }
+
+    /**
+     * TrueTimeRx's selection before {@link SampleBuffer}: the median offset of the servers' samples
+     * with the lowest round trip delay, sorted with comparators
+     */
+    private static long[] median(List<List<long[]>> samples) {
+        List<long[]> bestResponses = new ArrayList<>();
+        for (List<long[]> responses : samples) {
+            if (responses.isEmpty()) {
+                continue;
+            }
+            Collections.sort(responses, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] lhsParam, long[] rhsParam) {
+                    long lhs = SntpClient.getRoundTripDelay(lhsParam);
+                    long rhs = SntpClient.getRoundTripDelay(rhsParam);
+                    return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+                }
+            });
+            bestResponses.add(responses.get(0));
+        }
+
+        Collections.sort(bestResponses, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] lhsParam, long[] rhsParam) {
+                long lhs = SntpClient.getClockOffset(lhsParam);
+                long rhs = SntpClient.getClockOffset(rhsParam);
+                return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+            }
+        });
+        return bestResponses.get(bestResponses.size() / 2);
+    }
+
+    private static long[][] responses(int count) {
+        Random random = new Random(5905L);
+        long[][] responses = new long[count][SntpClient.RESPONSE_INDEX_SIZE];
+        for (long[] t : responses) {
+            long offset = (long) (random.nextGaussian() * 5_000_000L);
+            long rootDistance = 10_000_000L + random.nextInt(20_000_000);
+            t[SntpClient.RESPONSE_INDEX_CLOCK_OFFSET_NANOS] = offset;
+            t[SntpClient.RESPONSE_INDEX_OFFSET_LOW_NANOS] = offset - rootDistance;
+            t[SntpClient.RESPONSE_INDEX_OFFSET_HIGH_NANOS] = offset + rootDistance;
+            t[SntpClient.RESPONSE_INDEX_ROUND_TRIP_DELAY_NANOS] = 1_000_000L + random.nextInt(50_000_000);
+        }
+        return responses;
+    }
+}
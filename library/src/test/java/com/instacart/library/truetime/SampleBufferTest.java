@@ -0,0 +1,80 @@
+package com.instacart.library.truetime;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SampleBufferTest {
+
+    @Test
+    public void rowsFollowFirstSampleOfEachServer() {
+        SampleBuffer samples = new SampleBuffer(3);
+
+        samples.put(2, response(5L, 1L));
+        samples.put(0, response(-3L, 2L));
+        samples.put(2, response(7L, 1L));
+
+        assertEquals(2, samples.size());
+        assertEquals(7L, samples.offset(0));
+        assertEquals(-3L, samples.offset(1));
+        assertEquals(6L, samples.low(0));
+        assertEquals(8L, samples.high(0));
+    }
+
+    @Test
+    public void putCopiesTheResponse() {
+        SampleBuffer samples = new SampleBuffer(1);
+        long[] response = response(5L, 1L);
+
+        samples.put(0, response);
+        response[SntpClient.RESPONSE_INDEX_CLOCK_OFFSET_NANOS] = 42L;
+
+        assertEquals(5L, SntpClient.getClockOffsetNanos(samples.response(0)));
+    }
+
+    @Test
+    public void sortedColumnsMatchRowsAsSamplesAreReplaced() {
+        int servers = 7;
+        SampleBuffer samples = new SampleBuffer(servers);
+        Random random = new Random(5905L);
+
+        for (int i = 0; i < 10_000; i++) {
+            // few distinct values, so ties are common
+            samples.put(random.nextInt(servers), response(random.nextInt(20) - 10, random.nextInt(5)));
+
+            int count = samples.size();
+            long[] offsets = new long[count];
+            long[] lows = new long[count];
+            long[] highs = new long[count];
+            long[] sortedOffsets = new long[count];
+            long[] sortedLows = new long[count];
+            long[] sortedHighs = new long[count];
+            for (int row = 0; row < count; row++) {
+                offsets[row] = samples.offset(row);
+                lows[row] = samples.low(row);
+                highs[row] = samples.high(row);
+                sortedOffsets[row] = samples.sortedOffset(row);
+                sortedLows[row] = samples.sortedLow(row);
+                sortedHighs[row] = samples.sortedHigh(row);
+            }
+            Arrays.sort(offsets);
+            Arrays.sort(lows);
+            Arrays.sort(highs);
+
+            assertArrayEquals(offsets, sortedOffsets);
+            assertArrayEquals(lows, sortedLows);
+            assertArrayEquals(highs, sortedHighs);
+        }
+    }
+
+    private static long[] response(long offsetNanos, long rootDistanceNanos) {
+        long[] t = new long[SntpClient.RESPONSE_INDEX_SIZE];
+        t[SntpClient.RESPONSE_INDEX_CLOCK_OFFSET_NANOS] = offsetNanos;
+        t[SntpClient.RESPONSE_INDEX_OFFSET_LOW_NANOS] = offsetNanos - rootDistanceNanos;
+        t[SntpClient.RESPONSE_INDEX_OFFSET_HIGH_NANOS] = offsetNanos + rootDistanceNanos;
+        return t;
+    }
+}
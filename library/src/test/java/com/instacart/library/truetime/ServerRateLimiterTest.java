@@ -0,0 +1,135 @@
+package com.instacart.library.truetime;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import org.junit.Test;
+
+import static com.instacart.library.truetime.ServerRateLimiter.BURST_PACKETS;
+import static com.instacart.library.truetime.ServerRateLimiter.DENIED_INTERVAL_IN_MILLIS;
+import static com.instacart.library.truetime.ServerRateLimiter.MAX_POLL_INTERVAL_IN_MILLIS;
+import static com.instacart.library.truetime.ServerRateLimiter.MIN_POLL_INTERVAL_IN_MILLIS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ServerRateLimiterTest {
+
+    private final FakeClockRateLimiter _limiter = new FakeClockRateLimiter();
+
+    @Test
+    public void burstThenOnePerMinimumPollInterval() throws Exception {
+        InetAddress server = server(1);
+
+        for (int i = 0; i < BURST_PACKETS; i++) {
+            _limiter.acquire(server);
+        }
+        assertRefused(server, KissOfDeathException.KISS_CODE_RATE);
+
+        _limiter.now = MIN_POLL_INTERVAL_IN_MILLIS - 1L;
+        assertRefused(server, KissOfDeathException.KISS_CODE_RATE);
+        _limiter.now = MIN_POLL_INTERVAL_IN_MILLIS;
+        _limiter.acquire(server);
+        assertRefused(server, KissOfDeathException.KISS_CODE_RATE);
+    }
+
+    @Test
+    public void burstIsAllOrNothing() throws Exception {
+        InetAddress server = server(1);
+
+        try {
+            _limiter.acquire(server, BURST_PACKETS + 1);
+            fail("sent a burst of " + (BURST_PACKETS + 1));
+        } catch (KissOfDeathException expected) {
+        }
+
+        // the refused burst wasn't charged
+        _limiter.acquire(server, BURST_PACKETS);
+        assertRefused(server, KissOfDeathException.KISS_CODE_RATE);
+    }
+
+    @Test
+    public void rateKissDoublesUpToMaximumPollInterval() throws Exception {
+        InetAddress server = server(1);
+        long[] intervals = {
+              MIN_POLL_INTERVAL_IN_MILLIS,
+              2 * MIN_POLL_INTERVAL_IN_MILLIS,
+              4 * MIN_POLL_INTERVAL_IN_MILLIS,
+              8 * MIN_POLL_INTERVAL_IN_MILLIS,
+              MAX_POLL_INTERVAL_IN_MILLIS,
+              MAX_POLL_INTERVAL_IN_MILLIS
+        };
+
+        for (long interval : intervals) {
+            _limiter.onKissOfDeath(server, kiss(KissOfDeathException.KISS_CODE_RATE));
+            assertBlockedFor(server, interval, KissOfDeathException.KISS_CODE_RATE);
+        }
+    }
+
+    @Test
+    public void denyAndRstrLockOutForADay() throws Exception {
+        String[] kissCodes = {KissOfDeathException.KISS_CODE_DENY, KissOfDeathException.KISS_CODE_RSTR};
+        for (int i = 0; i < kissCodes.length; i++) {
+            String kissCode = kissCodes[i];
+            InetAddress server = server(i + 1);
+            _limiter.onKissOfDeath(server, kiss(kissCode));
+            assertBlockedFor(server, DENIED_INTERVAL_IN_MILLIS, kissCode);
+
+            // a later RATE starts over from the minimum poll interval
+            _limiter.onKissOfDeath(server, kiss(KissOfDeathException.KISS_CODE_RATE));
+            assertBlockedFor(server, MIN_POLL_INTERVAL_IN_MILLIS, KissOfDeathException.KISS_CODE_RATE);
+        }
+    }
+
+    @Test
+    public void responseResetsBackoff() throws Exception {
+        InetAddress server = server(1);
+        _limiter.onKissOfDeath(server, kiss(KissOfDeathException.KISS_CODE_RATE));
+        _limiter.onKissOfDeath(server, kiss(KissOfDeathException.KISS_CODE_RATE));
+
+        // a response can't lift a kiss that hasn't expired
+        _limiter.onResponse(server);
+        assertRefused(server, KissOfDeathException.KISS_CODE_RATE);
+
+        _limiter.now += 2 * MIN_POLL_INTERVAL_IN_MILLIS;
+        _limiter.onResponse(server);
+        _limiter.onKissOfDeath(server, kiss(KissOfDeathException.KISS_CODE_RATE));
+        assertBlockedFor(server, MIN_POLL_INTERVAL_IN_MILLIS, KissOfDeathException.KISS_CODE_RATE);
+    }
+
+    /**
+     * Checks server is refused until interval from now, then moves the clock there
+     */
+    private void assertBlockedFor(InetAddress server, long interval, String kissCode) throws KissOfDeathException {
+        long kissTime = _limiter.now;
+        _limiter.now = kissTime + interval - 1L;
+        assertRefused(server, kissCode);
+        _limiter.now = kissTime + interval;
+        _limiter.acquire(server);
+    }
+
+    private void assertRefused(InetAddress server, String kissCode) {
+        try {
+            _limiter.acquire(server);
+            fail("sent to " + server + " at " + _limiter.now);
+        } catch (KissOfDeathException e) {
+            assertEquals(kissCode, e.kissCode);
+        }
+    }
+
+    private static KissOfDeathException kiss(String kissCode) {
+        return new KissOfDeathException("Kiss-o'-Death response from NTP server: " + kissCode, kissCode);
+    }
+
+    private static InetAddress server(int lastOctet) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) lastOctet});
+    }
+
+    private static final class FakeClockRateLimiter extends ServerRateLimiter {
+
+        long now;
+
+        @Override
+        long elapsedRealtime() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.instacart.library.truetime;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SnapshotPublicationTest {
+
+    private static final long BASE_SNTP_TIME = 1_500_000_000_000L;
+
+    private static final int WRITERS = 2;
+    private static final int READERS = 4;
+    private static final int PUBLICATIONS = 200_000;
+
+    @Test
+    public void readersNeverSeeTornOrMixedSnapshots() throws InterruptedException {
+        final SntpClient client = new SntpClient();
+        final AtomicLong sequence = new AtomicLong();
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch writersDone = new CountDownLatch(WRITERS);
+
+        Thread[] threads = new Thread[WRITERS + READERS];
+        for (int i = 0; i < WRITERS; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    long n;
+                    while ((n = sequence.incrementAndGet()) <= PUBLICATIONS) {
+                        client.cacheTrueTimeInfo(snapshot(n), null, 0L);
+                    }
+                    writersDone.countDown();
+                }
+            });
+        }
+        for (int i = WRITERS; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    long lastUptime = 0L;
+                    while (writersDone.getCount() > 0 && failure.get() == null) {
+                        TrueTimeSnapshot snapshot = client.getCachedSnapshot();
+                        if (snapshot == null) {
+                            continue;
+                        }
+
+                        String error = check(snapshot);
+                        if (error == null && snapshot.deviceUptime < lastUptime) {
+                            error = "went back from uptime " + lastUptime + " to " + snapshot.deviceUptime;
+                        }
+                        if (error != null) {
+                            failure.compareAndSet(null, error);
+                            return;
+                        }
+                        lastUptime = snapshot.deviceUptime;
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+        // writers race, but the latest response always wins
+        assertEquals(PUBLICATIONS, client.getCachedSnapshot().deviceUptime);
+    }
+
+    @Test
+    public void olderResponseDoesNotReplaceNewerOne() {
+        SntpClient client = new SntpClient();
+        TrueTimeSnapshot newer = snapshot(2);
+
+        client.cacheTrueTimeInfo(newer, null, 0L);
+        client.cacheTrueTimeInfo(snapshot(1), null, 0L);
+
+        assertSame(newer, client.getCachedSnapshot());
+    }
+
+    /**
+     * Every field is derived from n, so a reader can tell if it sees fields of two publications
+     */
+    private static TrueTimeSnapshot snapshot(long n) {
+        long sntpTime = BASE_SNTP_TIME + 7 * n;
+        return new TrueTimeSnapshot(sntpTime,
+                                    n,
+                                    sntpTime * 1_000_000L + 3 * n,
+                                    n * 1_000_000L + 5 * n,
+                                    11 * n,
+                                    13 * n,
+                                    n * 1e-9);
+    }
+
+    /**
+     * @return why snapshot isn't one that was published, null if it is
+     */
+    private static String check(TrueTimeSnapshot snapshot) {
+        long n = snapshot.deviceUptime;
+        TrueTimeSnapshot expected = snapshot(n);
+        if (snapshot.sntpTime != expected.sntpTime ||
+            snapshot.sntpTimeNanos != expected.sntpTimeNanos ||
+            snapshot.deviceUptimeNanos != expected.deviceUptimeNanos ||
+            snapshot.roundTripDelay != expected.roundTripDelay ||
+            snapshot.rootDistanceNanos != expected.rootDistanceNanos ||
+            snapshot.driftRate != expected.driftRate) {
+            return "snapshot of uptime " + n + " mixes fields of another publication";
+        }
+        return null;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.instacart.library.truetime;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+public class SntpClientTest {
+
+    /** 1 second in NTP short format (16.16 fixed point) */
+    private static final long NTP_SHORT_SECOND = 1L << 16;
+
+    /** 2036-02-07T06:28:16Z, when the 32 bit seconds of NTP timestamps wrap to era 1 */
+    private static final long ERA_ROLLOVER_TIME = 2_085_978_496_000L;
+
+    private static final long OFFSET_1900_TO_1970 = 2_208_988_800L;
+
+    private static final long REQUEST_TICKS = 42_000L;
+    private static final long ROUND_TRIP_MILLIS = 20L;
+
+    @Test
+    public void offsetAcrossEraRollover() throws InvalidNtpServerResponseException {
+        // we're 1.24s behind: sent just before the rollover, the server answers just after it
+        long requestTime = ERA_ROLLOVER_TIME - 1_000L;
+        long[] t = parse(requestTime, ERA_ROLLOVER_TIME + 250L);
+
+        assertEquals(1_240_000_000L, SntpClient.getClockOffsetNanos(t));
+        assertEquals(ROUND_TRIP_MILLIS * 1_000_000L, SntpClient.getRoundTripDelayNanos(t));
+        assertEquals(requestTime, t[SntpClient.RESPONSE_INDEX_ORIGINATE_TIME]);
+        assertEquals(ERA_ROLLOVER_TIME + 250L, t[SntpClient.RESPONSE_INDEX_RECEIVE_TIME]);
+    }
+
+    @Test
+    public void offsetAcrossEraRolloverBackwards() throws InvalidNtpServerResponseException {
+        // we're ahead: sent just after the rollover, the server answers from just before it
+        long requestTime = ERA_ROLLOVER_TIME + 500L;
+        long[] t = parse(requestTime, ERA_ROLLOVER_TIME - 500L);
+
+        assertEquals(-1_010_000_000L, SntpClient.getClockOffsetNanos(t));
+        assertEquals(ROUND_TRIP_MILLIS * 1_000_000L, SntpClient.getRoundTripDelayNanos(t));
+        assertEquals(requestTime, t[SntpClient.RESPONSE_INDEX_ORIGINATE_TIME]);
+        assertEquals(ERA_ROLLOVER_TIME - 500L, t[SntpClient.RESPONSE_INDEX_RECEIVE_TIME]);
+    }
+
+    @Test
+    public void offsetWithinEra0() throws InvalidNtpServerResponseException {
+        // 2035-01-01T00:00:00Z
+        long requestTime = 2_051_222_400_000L;
+        long[] t = parse(requestTime, requestTime + 5_250L);
+
+        assertEquals(5_240_000_000L, SntpClient.getClockOffsetNanos(t));
+        assertEquals(ROUND_TRIP_MILLIS * 1_000_000L, SntpClient.getRoundTripDelayNanos(t));
+    }
+
+    @Test
+    public void staleResponseIsRejected() {
+        long requestTime = ERA_ROLLOVER_TIME - 1_000L;
+        byte[] packet = response(requestTime - 20_000L, ERA_ROLLOVER_TIME);
+
+        try {
+            parse(packet, requestTime);
+            fail("a response to a request sent 20s earlier was accepted");
+        } catch (InvalidNtpServerResponseException expected) {
+        }
+    }
+
+    @Test
+    public void eraSecondsUsesMostSignificantBit() {
+        assertEquals(0xFFFFFFFFL, SntpClient.eraSeconds(0xFFFFFFFFL));
+        assertEquals(0x80000000L, SntpClient.eraSeconds(0x80000000L));
+        assertEquals(0x100000000L, SntpClient.eraSeconds(0L));
+        assertEquals(0x17FFFFFFFL, SntpClient.eraSeconds(0x7FFFFFFFL));
+    }
+
+    @Test
+    public void rootDistanceIsHalfTotalDelayPlusRootDispersion() {
+        long[] response = new long[SntpClient.RESPONSE_INDEX_SIZE];
+        response[SntpClient.RESPONSE_INDEX_ROOT_DELAY] = NTP_SHORT_SECOND / 16;         // 62.5ms
+        response[SntpClient.RESPONSE_INDEX_DISPERSION] = NTP_SHORT_SECOND / 64;         // 15.625ms
+        response[SntpClient.RESPONSE_INDEX_ROUND_TRIP_DELAY_NANOS] = 37_500_000L;
+
+        assertEquals((62_500_000L + 37_500_000L) / 2 + 15_625_000L, SntpClient.getRootDistanceNanos(response));
+    }
+
+    @Test
+    public void rootDistanceCountsAtLeastMinDispersion() {
+        long[] response = new long[SntpClient.RESPONSE_INDEX_SIZE];
+        response[SntpClient.RESPONSE_INDEX_ROUND_TRIP_DELAY_NANOS] = 200_000L;
+
+        // MINDISP of RFC 5905: 10ms of total delay at least
+        assertEquals(5_000_000L, SntpClient.getRootDistanceNanos(response));
+    }
+
+    @Test
+    public void rootDistanceUsesRoundTripDelayMagnitude() {
+        long[] response = new long[SntpClient.RESPONSE_INDEX_SIZE];
+        response[SntpClient.RESPONSE_INDEX_ROUND_TRIP_DELAY_NANOS] = -40_000_000L;
+
+        assertEquals(20_000_000L, SntpClient.getRootDistanceNanos(response));
+    }
+
+    @Test
+    public void serverIdTellsAddressesApart() throws UnknownHostException {
+        InetAddress v4 = InetAddress.getByAddress(new byte[]{(byte) 192, 0, 2, 1});
+        InetAddress otherV4 = InetAddress.getByAddress(new byte[]{(byte) 192, 0, 2, 2});
+        InetAddress v6 = InetAddress.getByName("2001:db8::1");
+        InetAddress otherV6 = InetAddress.getByName("2001:db8::2");
+
+        assertEquals(0xC0000201L, SntpClient.serverId(v4));
+        assertEquals(SntpClient.serverId(v6), SntpClient.serverId(InetAddress.getByName("2001:db8:0:0:0:0:0:1")));
+        assertNotEquals(SntpClient.serverId(v4), SntpClient.serverId(otherV4));
+        assertNotEquals(SntpClient.serverId(v6), SntpClient.serverId(otherV6));
+    }
+
+    /**
+     * Parses the response of a server that received and sent back the request at serverTime,
+     * ROUND_TRIP_MILLIS after it was sent at requestTime
+     */
+    private static long[] parse(long requestTime, long serverTime) throws InvalidNtpServerResponseException {
+        return parse(response(requestTime, serverTime), requestTime);
+    }
+
+    private static long[] parse(byte[] packet, long requestTime) throws InvalidNtpServerResponseException {
+        long responseTicks = REQUEST_TICKS + ROUND_TRIP_MILLIS;
+        return SntpClient.parseResponse(packet,
+                                        requestTime,
+                                        REQUEST_TICKS,
+                                        REQUEST_TICKS * 1_000_000L,
+                                        responseTicks,
+                                        responseTicks * 1_000_000L,
+                                        100f,
+                                        100f,
+                                        1_000);
+    }
+
+    /**
+     * @return a stratum 1 server response echoing originateTime, received and transmitted at serverTime
+     */
+    private static byte[] response(long originateTime, long serverTime) {
+        byte[] packet = new byte[SntpClient.NTP_PACKET_SIZE];
+        packet[0] = 0x24; // no leap warning, version 4, server mode
+        packet[1] = 1;
+        writeTimeStamp(packet, 24, originateTime);
+        writeTimeStamp(packet, 32, serverTime);
+        writeTimeStamp(packet, 40, serverTime);
+        return packet;
+    }
+
+    private static void writeTimeStamp(byte[] packet, int offset, long time) {
+        long seconds = (time / 1_000L + OFFSET_1900_TO_1970) & 0xFFFFFFFFL;
+        long fraction = time % 1_000L * 0x100000000L / 1_000L;
+        writeInt(packet, offset, seconds);
+        writeInt(packet, offset + 4, fraction);
+    }
+
+    private static void writeInt(byte[] packet, int offset, long value) {
+        packet[offset] = (byte) (value >> 24);
+        packet[offset + 1] = (byte) (value >> 16);
+        packet[offset + 2] = (byte) (value >> 8);
+        packet[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,332 @@
+package com.instacart.library.truetime;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SntpSyncEngineTest {
+
+    private static final long MILLIS = 1_000_000L;
+
+    /** round trip delays of a server's successive samples: the second one is the best */
+    private static final long[] DELAYS = {30 * MILLIS, 10 * MILLIS, 20 * MILLIS, 40 * MILLIS};
+
+    /** longer than any test may take: a server this slow only answers by being cancelled */
+    private static final long HANG_MILLIS = 60_000L;
+
+    /** a server slow enough that the others answer first */
+    private static final long SLOW_MILLIS = 200L;
+
+    /** how long a quorum may take to complete a sync once its servers have answered */
+    private static final long QUORUM_WAIT_MILLIS = 1_000L;
+
+    private final ExecutorService _executor = Executors.newCachedThreadPool();
+    private final FakeServerClock _clock = new FakeServerClock();
+    private final SntpSyncEngine _engine = new SntpSyncEngine(_clock);
+
+    @After
+    public void shutdown() {
+        _executor.shutdownNow();
+    }
+
+    @Test(timeout = 5_000L)
+    public void everyServerAnswers() throws Exception {
+        FakeServer a = _clock.server(1, 10, 5);
+        FakeServer b = _clock.server(2, 11, 3);
+        FakeServer c = _clock.server(3, 12, 4);
+
+        long[] response = _engine.sync(addresses(a, b, c), 3, DELAYS.length, null, _executor, 3);
+
+        // b's interval is the narrowest, and its sample with the lowest delay is kept
+        assertEquals(11 * MILLIS, SntpClient.getClockOffsetNanos(response));
+        assertEquals(DELAYS[1], SntpClient.getRoundTripDelayNanos(response));
+        // the intersection of all three
+        assertEquals(8 * MILLIS, response[SntpClient.RESPONSE_INDEX_OFFSET_LOW_NANOS]);
+        assertEquals(14 * MILLIS, response[SntpClient.RESPONSE_INDEX_OFFSET_HIGH_NANOS]);
+        for (FakeServer server : new FakeServer[]{a, b, c}) {
+            assertEquals(DELAYS.length, server.requests.get());
+        }
+    }
+
+    @Test(timeout = 5_000L)
+    public void failedServersAreReplaced() throws Exception {
+        FakeServer a = _clock.server(1, 10, 5);
+        FakeServer b = _clock.server(2, 11, 3);
+        FakeServer c = _clock.server(3, 12, 4);
+        FakeServer d = _clock.server(4, 12, 2);
+        FakeServer e = _clock.server(5, 10, 5);
+        a.failure = new SocketTimeoutException("a timed out");
+        c.failure = new SocketTimeoutException("c timed out");
+
+        long[] response = _engine.sync(addresses(a, b, c, d, e), 3, 2, null, _executor, 2);
+
+        assertEquals(12 * MILLIS, SntpClient.getClockOffsetNanos(response));
+        // e stood in for a and c, which were asked every sample before being given up on
+        assertEquals(2, e.requests.get());
+        assertEquals(2, a.requests.get());
+        assertEquals(2, c.requests.get());
+    }
+
+    @Test(timeout = 5_000L)
+    public void failsWithLastFailureWhenEveryServerFails() throws Exception {
+        FakeServer a = _clock.server(1, 10, 5);
+        FakeServer b = _clock.server(2, 11, 3);
+        a.failure = new SocketTimeoutException("a timed out");
+        b.failure = new InvalidNtpServerResponseException("b is unsynchronized");
+
+        try {
+            _engine.sync(addresses(a, b), 2, 1, null, _executor, 1);
+            fail("synced with failing servers");
+        } catch (IOException e) {
+            // a single worker: b fails last
+            assertSame(b.failure, e);
+        }
+        assertEquals(1, a.requests.get());
+        assertEquals(1, b.requests.get());
+    }
+
+    @Test(timeout = 5_000L)
+    public void rejectedWorkersFailTheSync() throws Exception {
+        FakeServer a = _clock.server(1, 10, 5);
+        Executor rejecting = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException("shut down");
+            }
+        };
+
+        try {
+            _engine.sync(addresses(a), 1, 1, null, rejecting, 1);
+            fail("synced without workers");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, a.requests.get());
+    }
+
+    @Test(timeout = 5_000L)
+    public void interruptedSyncReturnsAndReleasesRequests() throws Exception {
+        final FakeServer a = _clock.server(1, 10, 5);
+        final FakeServer b = _clock.server(2, 11, 3);
+        a.latencyMillis = HANG_MILLIS;
+        b.latencyMillis = HANG_MILLIS;
+        final AtomicReference<Throwable> thrown = new AtomicReference<>();
+
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    _engine.sync(addresses(a, b), 2, 1, null, _executor, 2);
+                } catch (Throwable e) {
+                    thrown.set(e);
+                }
+            }
+        });
+        caller.start();
+        a.inFlight.await();
+        b.inFlight.await();
+
+        caller.interrupt();
+        caller.join();
+
+        assertTrue(String.valueOf(thrown.get()), thrown.get() instanceof InterruptedIOException);
+        // the sync's token was cancelled: the requests it left behind don't run to their timeout
+        a.released.await();
+        b.released.await();
+    }
+
+    @Test(timeout = 5_000L)
+    public void cancelledSyncStillCallsListener() throws Exception {
+        FakeServer a = _clock.server(1, 10, 5);
+        a.latencyMillis = HANG_MILLIS;
+        SyncToken token = new SyncToken();
+        RecordingListener listener = new RecordingListener();
+
+        _engine.start(addresses(a), 1, 1, null, _executor, 1, token, listener);
+        a.inFlight.await();
+        token.cancel();
+
+        assertTrue(listener.called.await(5, TimeUnit.SECONDS));
+        assertNull(listener.response.get());
+        assertTrue(String.valueOf(listener.failure.get()), listener.failure.get() instanceof InterruptedIOException);
+        assertEquals(1, listener.calls.get());
+    }
+
+    @Test(timeout = 5_000L)
+    public void quorumCompletesWithoutWaitingForSlowServers() throws Exception {
+        FakeServer a = _clock.server(1, 10, 1);
+        FakeServer b = _clock.server(2, 11, 2);
+        FakeServer c = _clock.server(3, 10, 1);
+        c.latencyMillis = HANG_MILLIS;
+        // so the slow server's request is in flight when the quorum agrees
+        a.answerAfter = c.inFlight;
+        b.answerAfter = c.inFlight;
+        _clock.withQuorum(2, 5L);
+        RecordingListener listener = new RecordingListener();
+
+        _engine.start(addresses(a, b, c), 3, 1, null, _executor, 3, new SyncToken(), listener);
+
+        assertTrue(listener.called.await(QUORUM_WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(10 * MILLIS, SntpClient.getClockOffsetNanos(listener.response.get()));
+        // the token was cancelled once the quorum agreed, releasing the slow server's request
+        c.released.await();
+        assertEquals(0, c.answers.get());
+    }
+
+    @Test(timeout = 5_000L)
+    public void disagreeingServersDontCompleteEarly() throws Exception {
+        FakeServer a = _clock.server(1, 10, 1);
+        FakeServer b = _clock.server(2, 20, 1);
+        FakeServer c = _clock.server(3, 10, 2);
+        c.latencyMillis = SLOW_MILLIS;
+        _clock.withQuorum(2, 5L);
+
+        long[] response = _engine.sync(addresses(a, b, c), 3, 1, null, _executor, 3);
+
+        // only c's answer makes a majority
+        assertEquals(1, c.answers.get());
+        assertEquals(10 * MILLIS, SntpClient.getClockOffsetNanos(response));
+    }
+
+    @Test(timeout = 5_000L)
+    public void agreementWiderThanMaxErrorDoesntCompleteEarly() throws Exception {
+        FakeServer a = _clock.server(1, 10, 20);
+        FakeServer b = _clock.server(2, 12, 20);
+        FakeServer c = _clock.server(3, 11, 30);
+        c.latencyMillis = SLOW_MILLIS;
+        _clock.withQuorum(2, 5L);
+
+        _engine.sync(addresses(a, b, c), 3, 1, null, _executor, 3);
+
+        assertEquals(1, c.answers.get());
+    }
+
+    private static InetAddress[] addresses(FakeServer... servers) {
+        InetAddress[] addresses = new InetAddress[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            addresses[i] = servers[i].address;
+        }
+        return addresses;
+    }
+
+    /**
+     * A server whose clock is offsetMillis ahead, answering with an interval of ± rootDistanceMillis
+     * and successive round trip delays of {@link #DELAYS}, or failing
+     */
+    static final class FakeServer {
+
+        final InetAddress address;
+        final long offsetNanos;
+        final long rootDistanceNanos;
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger answers = new AtomicInteger();
+        final CountDownLatch inFlight = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        volatile long latencyMillis;
+        volatile CountDownLatch answerAfter;
+        volatile IOException failure;
+
+        FakeServer(InetAddress address, long offsetNanos, long rootDistanceNanos) {
+            this.address = address;
+            this.offsetNanos = offsetNanos;
+            this.rootDistanceNanos = rootDistanceNanos;
+        }
+
+        long[] answer(SyncToken token, long[] t) throws IOException {
+            int sample = requests.getAndIncrement();
+            inFlight.countDown();
+            if (answerAfter != null) {
+                try {
+                    answerAfter.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (latencyMillis > 0L) {
+                try {
+                    token.sleep(latencyMillis);
+                } catch (InterruptedIOException e) {
+                    released.countDown();
+                    throw e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+
+            t[SntpClient.RESPONSE_INDEX_CLOCK_OFFSET_NANOS] = offsetNanos;
+            t[SntpClient.RESPONSE_INDEX_OFFSET_LOW_NANOS] = offsetNanos - rootDistanceNanos;
+            t[SntpClient.RESPONSE_INDEX_OFFSET_HIGH_NANOS] = offsetNanos + rootDistanceNanos;
+            t[SntpClient.RESPONSE_INDEX_ROUND_TRIP_DELAY_NANOS] = DELAYS[sample % DELAYS.length];
+            t[SntpClient.RESPONSE_INDEX_SERVER_ID] = SntpClient.serverId(address);
+            answers.incrementAndGet();
+            return t;
+        }
+    }
+
+    /**
+     * Answers requests from its {@link FakeServer}s instead of the network
+     */
+    static final class FakeServerClock extends TrueTimeClock {
+
+        private final ConcurrentHashMap<InetAddress, FakeServer> _servers = new ConcurrentHashMap<>();
+
+        FakeServerClock() {
+            super("test");
+        }
+
+        FakeServer server(int lastOctet, long offsetMillis, long rootDistanceMillis) throws UnknownHostException {
+            InetAddress address = InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) lastOctet});
+            FakeServer server = new FakeServer(address, offsetMillis * MILLIS, rootDistanceMillis * MILLIS);
+            _servers.put(address, server);
+            return server;
+        }
+
+        @Override
+        long[] requestTimeWithRetries(InetAddress address, RetryPolicy retryPolicy, SyncToken token, long[] t)
+              throws IOException {
+            return _servers.get(address).answer(token, t);
+        }
+    }
+
+    static final class RecordingListener
+          implements SntpResponseListener {
+
+        final AtomicReference<long[]> response = new AtomicReference<>();
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch called = new CountDownLatch(1);
+
+        @Override
+        public void onResponse(long[] r) {
+            response.set(r);
+            calls.incrementAndGet();
+            called.countDown();
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+            failure.set(e);
+            calls.incrementAndGet();
+            called.countDown();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.instacart.library.truetime;
+
+import java.io.IOException;
+import java.util.Date;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrueTimeFutureTest {
+
+    @Test
+    public void claimedFutureCantBeCancelledOrFailed() throws Exception {
+        TrueTimeFuture future = new TrueTimeFuture(new SyncToken());
+
+        assertTrue(future.claim());
+        assertFalse(future.isDone());
+        assertFalse(future.cancel(true));
+        assertFalse(future.fail(new IOException("timed out")));
+
+        Date now = new Date(1_500_000_000_000L);
+        assertTrue(future.succeed(now, null));
+        assertEquals(now, future.get());
+    }
+
+    @Test
+    public void cancelledFutureCantBeClaimed() {
+        TrueTimeFuture future = new TrueTimeFuture(new SyncToken());
+
+        assertTrue(future.cancel(true));
+        assertFalse(future.claim());
+        assertTrue(future.isCancelled());
+    }
+
+    @Test
+    public void futureIsClaimedOnce() {
+        TrueTimeFuture future = new TrueTimeFuture(new SyncToken());
+
+        assertTrue(future.claim());
+        assertFalse(future.claim());
+    }
+
+    @Test
+    public void abortFailsClaimedFuture() {
+        TrueTimeFuture future = new TrueTimeFuture(new SyncToken());
+
+        assertFalse(future.abort(new IOException("not claimed")));
+        assertTrue(future.claim());
+        assertTrue(future.abort(new IOException("caching failed")));
+        assertTrue(future.isDone());
+        assertFalse(future.isCancelled());
+    }
+}
@@ -0,0 +1,35 @@
+package com.instacart.library.truetime;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrueTimeIntervalTest {
+
+    @Test
+    public void disjointIntervalsAreOrdered() {
+        TrueTimeInterval first = interval(100L, 200L);
+        TrueTimeInterval second = interval(201L, 300L);
+
+        assertTrue(first.isBefore(second));
+        assertTrue(second.isAfter(first));
+        assertFalse(first.overlaps(second));
+    }
+
+    @Test
+    public void touchingIntervalsOverlap() {
+        TrueTimeInterval first = interval(100L, 200L);
+        TrueTimeInterval second = interval(200L, 300L);
+
+        assertFalse(first.isBefore(second));
+        assertFalse(second.isAfter(first));
+        assertTrue(first.overlaps(second));
+    }
+
+    private static TrueTimeInterval interval(long earliest, long latest) {
+        TrueTimeInterval interval = new TrueTimeInterval();
+        interval.set(earliest, latest);
+        return interval;
+    }
+}
@@ -0,0 +1,118 @@
+package com.instacart.library.truetime;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TrueTimeSnapshotTest {
+
+    private static final long SNTP_TIME = 1_500_000_000_123L;
+    private static final long UPTIME = 42_000L;
+
+    @Test
+    public void nowMillisAddsUptimeElapsedSinceSync() {
+        TrueTimeSnapshot snapshot = new TrueTimeSnapshot(SNTP_TIME, UPTIME, 15L);
+
+        assertEquals(SNTP_TIME, snapshot.nowMillis(UPTIME));
+        assertEquals(SNTP_TIME + 60_000L, snapshot.nowMillis(UPTIME + 60_000L));
+    }
+
+    @Test
+    public void nowNanosKeepsSubMillisecondPrecision() {
+        TrueTimeSnapshot snapshot = new TrueTimeSnapshot(SNTP_TIME,
+                                                         UPTIME,
+                                                         SNTP_TIME * 1_000_000L + 456_789L,
+                                                         UPTIME * 1_000_000L + 1_000L,
+                                                         15L,
+                                                         TrueTimeSnapshot.UNKNOWN_ROOT_DISTANCE_NANOS,
+                                                         0D);
+
+        assertEquals(SNTP_TIME * 1_000_000L + 456_789L, snapshot.nowNanos(UPTIME * 1_000_000L + 1_000L));
+        assertEquals(SNTP_TIME * 1_000_000L + 456_789L + 250L, snapshot.nowNanos(UPTIME * 1_000_000L + 1_250L));
+    }
+
+    @Test
+    public void millisAndNanosAgree() {
+        TrueTimeSnapshot snapshot = new TrueTimeSnapshot(SNTP_TIME, UPTIME, 15L);
+
+        long uptime = UPTIME + 12_345L;
+        assertEquals(snapshot.nowMillis(uptime), snapshot.nowNanos(uptime * 1_000_000L) / 1_000_000L);
+    }
+
+    @Test
+    public void driftRateScalesElapsedTime() {
+        // true time runs 100 PPM faster than the device oscillator
+        TrueTimeSnapshot snapshot = new TrueTimeSnapshot(SNTP_TIME,
+                                                         UPTIME,
+                                                         SNTP_TIME * 1_000_000L,
+                                                         UPTIME * 1_000_000L,
+                                                         15L,
+                                                         TrueTimeSnapshot.UNKNOWN_ROOT_DISTANCE_NANOS,
+                                                         100e-6);
+
+        long elapsed = 1_000_000L;
+        assertEquals(SNTP_TIME + elapsed + 100L, snapshot.nowMillis(UPTIME + elapsed));
+        assertEquals((SNTP_TIME + elapsed + 100L) * 1_000_000L,
+                     snapshot.nowNanos((UPTIME + elapsed) * 1_000_000L));
+    }
+
+    @Test
+    public void snapshotRestoredFromSlewStateContinuesSameTimeLine() {
+        TrueTimeSnapshot previous = new TrueTimeSnapshot(SNTP_TIME, UPTIME, 15L);
+        TrueTimeSnapshot target = new TrueTimeSnapshot(SNTP_TIME - 200L, UPTIME, 15L);
+        long slewStart = (UPTIME + 1_000L) * 1_000_000L;
+        TrueTimeSnapshot slewing = previous.slewTowards(target, 60_000L, slewStart);
+
+        // as a restarted process reads it back from the cache
+        TrueTimeSnapshot restored = new TrueTimeSnapshot(slewing.sntpTime,
+                                                         slewing.deviceUptime,
+                                                         slewing.sntpTimeNanos,
+                                                         slewing.deviceUptimeNanos,
+                                                         0L,
+                                                         slewing.rootDistanceNanos,
+                                                         slewing.driftRate,
+                                                         slewing.getSlewStartUptimeNanos(),
+                                                         slewing.getSlewWindowNanos(),
+                                                         slewing.getSlewCorrectionNanos());
+
+        for (long uptime = slewStart; uptime < slewStart + 70_000_000_000L; uptime += 5_000_000_000L) {
+            assertEquals(slewing.nowNanos(uptime), restored.nowNanos(uptime));
+        }
+        assertEquals(previous.nowNanos(slewStart), restored.nowNanos(slewStart));
+    }
+
+    @Test
+    public void errorIsRootDistanceAtSyncTime() {
+        TrueTimeSnapshot snapshot = snapshotWithRootDistance(25_000_000L);
+
+        assertEquals(25_000_000L, snapshot.errorNanos(UPTIME * 1_000_000L));
+        // uptime before the sync (e.g. a racing reader) doesn't shrink the bound
+        assertEquals(25_000_000L, snapshot.errorNanos(UPTIME * 1_000_000L - 1_000_000_000L));
+    }
+
+    @Test
+    public void errorGrowsBy15PpmOfElapsedTime() {
+        TrueTimeSnapshot snapshot = snapshotWithRootDistance(25_000_000L);
+
+        // 1000s later: 15ms of worst case oscillator drift
+        long later = (UPTIME + 1_000_000L) * 1_000_000L;
+        assertEquals(25_000_000L + 15_000_000L, snapshot.errorNanos(later));
+    }
+
+    @Test
+    public void unknownRootDistanceIsMaxDist() {
+        TrueTimeSnapshot snapshot = new TrueTimeSnapshot(SNTP_TIME, UPTIME, 15L);
+
+        assertEquals(1_500_000_000L, snapshot.errorNanos(UPTIME * 1_000_000L));
+    }
+
+    private static TrueTimeSnapshot snapshotWithRootDistance(long rootDistanceNanos) {
+        return new TrueTimeSnapshot(SNTP_TIME,
+                                    UPTIME,
+                                    SNTP_TIME * 1_000_000L,
+                                    UPTIME * 1_000_000L,
+                                    15L,
+                                    rootDistanceNanos,
+                                    0D);
+    }
+}